@@ -12,6 +12,7 @@ import com.qihang.qhdb.backend.server.Server;
 import com.qihang.qhdb.backend.tbm.TableManager;
 import com.qihang.qhdb.backend.tm.TransactionManager;
 import com.qihang.qhdb.backend.utils.Panic;
+import com.qihang.qhdb.backend.vm.LockTable;
 import com.qihang.qhdb.backend.vm.VersionManager;
 import com.qihang.qhdb.backend.vm.VersionManagerImpl;
 
@@ -39,11 +40,14 @@ public class Launcher {
         options.addOption("open", true, "-open DBPath");
         options.addOption("create", true, "-create DBPath");
         options.addOption("mem", true, "-mem 64MB");
+        options.addOption("lock", true, "-lock detect|wait-die|wound-wait");
+        options.addOption("lockTimeout", true, "-lockTimeout 5000 (ms)");
         CommandLineParser parser = new DefaultParser();
         CommandLine cmd = parser.parse(options,args);
 
         if(cmd.hasOption("open")) {
-            openDB(cmd.getOptionValue("open"), parseMem(cmd.getOptionValue("mem")));
+            openDB(cmd.getOptionValue("open"), parseMem(cmd.getOptionValue("mem")),
+                    parseLockPolicy(cmd.getOptionValue("lock")), parseLockTimeout(cmd.getOptionValue("lockTimeout")));
             return;
         }
         if(cmd.hasOption("create")) {
@@ -64,14 +68,48 @@ public class Launcher {
     }
 
     // 开启数据库文件
-    private static void openDB(String path, long mem) {
+    private static void openDB(String path, long mem, int lockPolicy, long lockTimeout) {
         TransactionManager tm = TransactionManager.open(path);      // 打开tm
         DataManager dm = DataManager.open(path, mem, tm);           // 打开dm
-        VersionManager vm = new VersionManagerImpl(tm, dm);         // 打开vm
+        VersionManager vm = new VersionManagerImpl(tm, dm, lockPolicy, lockTimeout); // 打开vm
         TableManager tbm = TableManager.open(path, vm, dm);         // 打开tbm
         new Server(port, tbm).start();                              // 打开sql服务器
     }
 
+    private static int parseLockPolicy(String policy) {
+        if(policy == null || "".equals(policy)) {
+            return LockTable.DETECT;
+        }
+        switch(policy) {
+            case "detect":
+                return LockTable.DETECT;
+            case "wait-die":
+                return LockTable.WAIT_DIE;
+            case "wound-wait":
+                return LockTable.WOUND_WAIT;
+            default:
+                Panic.panic(Error.InvalidLockPolicyException);
+        }
+        return LockTable.DETECT;
+    }
+
+    private static long parseLockTimeout(String timeout) {
+        if(timeout == null || "".equals(timeout)) {
+            return 0;
+        }
+        long ms = -1;
+        try {
+            ms = Long.parseLong(timeout);
+        } catch(NumberFormatException e) {
+            Panic.panic(Error.InvalidLockTimeoutException);
+        }
+        // 0 表示一直等待，负数无意义
+        if(ms < 0) {
+            Panic.panic(Error.InvalidLockTimeoutException);
+        }
+        return ms;
+    }
+
     private static long parseMem(String memStr) {
         if(memStr == null || "".equals(memStr)) {
             return DEFALUT_MEM;
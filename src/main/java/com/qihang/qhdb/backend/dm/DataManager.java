@@ -6,6 +6,8 @@ import com.qihang.qhdb.backend.dm.page.PageOne;
 import com.qihang.qhdb.backend.dm.pageCache.PageCache;
 import com.qihang.qhdb.backend.tm.TransactionManager;
 
+import java.util.List;
+
 /**
  * 数据管理模块接口：
  * 创建 DataManager
@@ -19,6 +21,26 @@ public interface DataManager {
 
     long insert(long xid, byte[] data) throws Exception; // 插入数据
 
+    DataItem readInvalid(long uid) throws Exception; // 读取恢复时被撤销的插入留下的非法数据，其他情况返回 null
+
+    void free(long uid) throws Exception; // 清理数据，调用方保证索引中已没有指向它的项
+
+    void afterBatch(long xid, List<DataItem> dis); // 同一页面上的多个 DataItem 都已 before() 并修改完成，只写一条日志并释放写锁
+
+    void reclaim(List<Long> uids); // 已清理的数据不会再被任何事务访问，空间交给页面索引复用
+
+    boolean isAllVisible(int pgno); // 页面上的记录是否都对所有事务可见
+
+    void setAllVisible(int pgno, long horizon); // 清理确认页面上的记录都对所有事务可见，水位之后没有事务修改过页面时设置
+
+    void flushLog(); // 将已写入的日志全部落盘，事务提交前调用
+
+    void flushLog(long lsn); // 保证 lsn 之前的日志都已落盘
+
+    long logCommit(long xid); // 写入事务提交日志并返回其 LSN，需要调用 flushLog 落盘
+
+    void logAbort(long xid); // 写入事务回滚日志
+
     void close(); // 关闭数据管理器
 
     /**
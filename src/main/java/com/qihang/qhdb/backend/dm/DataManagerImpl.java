@@ -1,5 +1,6 @@
 package com.qihang.qhdb.backend.dm;
 
+import com.google.common.primitives.Bytes;
 import com.qihang.qhdb.backend.common.AbstractCache;
 import com.qihang.qhdb.backend.dm.dataItem.DataItem;
 import com.qihang.qhdb.backend.dm.dataItem.DataItemImpl;
@@ -11,10 +12,15 @@ import com.qihang.qhdb.backend.dm.pageCache.PageCache;
 import com.qihang.qhdb.backend.dm.pageIndex.PageIndex;
 import com.qihang.qhdb.backend.dm.pageIndex.PageInfo;
 import com.qihang.qhdb.backend.tm.TransactionManager;
+import com.qihang.qhdb.backend.tm.TransactionManagerImpl;
 import com.qihang.qhdb.backend.utils.Panic;
 import com.qihang.qhdb.backend.utils.Types;
 import com.qihang.qhdb.common.Error;
 
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
 /**
  *  DataManager 是 DM 层直接对外提供方法的类，使用 DataItem 进行数据交互，
  *  同时也实现了 DataItem 对象的缓存，靠UID查询 DataItem 数据项。
@@ -39,15 +45,29 @@ import com.qihang.qhdb.common.Error;
  *    6、为DataItemImpl.release()提供的释放DataItem缓存方法：releaseDataItem(DataItem di)
  *    7、初始化页面索引：fillPageIndex()
  *    8、关闭DM
+ *    9、清理数据 free(long uid) 和复用清理后的空间 reclaim(List<Long> uids)
+ *
+ * 被清理的 DataItem 标记为 FREE，成为页面中的空洞，交给 pageIndex 后插入优先写入空洞，
+ * 空洞比数据大时，剩余部分写一个 FREE 的 DataItem 头，仍然是一个空洞。
+ * 打开数据库时扫描所有页面，FREE 的 DataItem 直接作为空洞。
+ *
+ * 可见性映射只在内存中维护，记录每个页面被修改过的最大事务（超级事务除外），取反表示页面全部可见：
+ * 插入和修改 DataItem 时记录事务，同时清除全部可见；清理确认页面上的记录都对所有事务可见后，
+ * 只有修改过页面的事务都在水位之前时才设置，水位之后的事务可能插入了还没有加入索引、清理看不到的记录。
+ * 打开数据库时所有页面都不是全部可见。
  *
  */
 public class DataManagerImpl extends AbstractCache<DataItem> implements DataManager {
 
+    // 比这更小的空洞放不下任何记录，不再复用
+    private static final int MIN_HOLE_SIZE = 32;
+
     TransactionManager tm; // 事务管理器
     PageCache pc; // 页面缓存
     Logger logger; // 日志
     PageIndex pIndex; // 页面索引
     Page pageOne; // 页面
+    Map<Integer, Long> visibilityMap; // 可见性映射
 
     public DataManagerImpl(PageCache pc, Logger logger, TransactionManager tm) {
         super(0);
@@ -55,6 +75,8 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
         this.logger = logger;
         this.tm = tm;
         this.pIndex = new PageIndex();
+        this.visibilityMap = new ConcurrentHashMap<>();
+        pc.setLogger(logger);
     }
 
     /**
@@ -74,6 +96,23 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
         return di;
     }
 
+    /**
+     * 恢复时被撤销的插入只把有效位置为非法，数据还在，清理时需要读出数据删除索引项
+     *
+     * @param uid
+     * @return
+     * @throws Exception
+     */
+    @Override
+    public DataItem readInvalid(long uid) throws Exception {
+        DataItemImpl di = (DataItemImpl)super.get(uid);
+        if(di.isValid() || di.isFree()) {
+            di.release();
+            return null;
+        }
+        return di;
+    }
+
     /**
      * 在 pageIndex 中获取一个足以存储插入内容的页面的页号，
      * 获取页面后，首先需要写入插入日志，接着才可以通过 pageX 插入数据，并返回插入位置的偏移。
@@ -92,6 +131,12 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
             throw Error.DataTooLargeException;
         }
 
+        // 优先写入清理留下的空洞
+        PageInfo hole = pIndex.selectHole(raw.length, MIN_HOLE_SIZE);
+        if(hole != null) {
+            return insertIntoHole(xid, raw, hole);
+        }
+
         PageInfo pi = null;
         // 在 pageIndex 中获取一个足以存储插入内容的页面的页号，最多尝试五次
         for(int i = 0; i < 5; i ++) {
@@ -117,10 +162,12 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
             pg = pc.getPage(pi.pgno);
             // 写入插入日志
             byte[] log = Recover.insertLog(xid, pg, raw);
-            logger.log(log);
+            long lsn = logger.log(log);
 
             // 完成页面数据插入, 返回在此页面中的插入位置偏移量
             short offset = PageX.insert(pg, raw);
+            PageX.setLSN(pg, lsn);
+            touchPage(pi.pgno, xid);
             // 释放页面的缓存
             pg.release();
             // 返回 uid
@@ -135,6 +182,85 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
         }
     }
 
+    private long insertIntoHole(long xid, byte[] raw, PageInfo hole) throws Exception {
+        int rest = hole.freeSpace - raw.length;
+        short restOffset = (short)(hole.offset + raw.length);
+        // 剩余部分写一个空洞的头，和数据一起写入日志
+        byte[] data = rest == 0 ? raw : Bytes.concat(raw, DataItem.wrapFreeRaw(rest));
+        Page pg = pc.getPage(hole.pgno);
+        try {
+            long lsn = logger.log(Recover.insertLog(xid, hole.pgno, hole.offset, data));
+            PageX.insertAt(pg, data, hole.offset);
+            PageX.setLSN(pg, lsn);
+            touchPage(hole.pgno, xid);
+        } finally {
+            pg.release();
+        }
+        if(rest >= MIN_HOLE_SIZE) {
+            pIndex.addHole(hole.pgno, restOffset, rest);
+        }
+        return Types.addressToUid(hole.pgno, hole.offset);
+    }
+
+    /**
+     * 清理：把 DataItem 标记为 FREE，修改记录日志，恢复时重做
+     * 空间此时还不能复用，已经从索引中取到这个 UID 的事务可能还在访问，由上层确认后调用 reclaim
+     *
+     * @param uid
+     * @throws Exception
+     */
+    @Override
+    public void free(long uid) throws Exception {
+        DataItemImpl di = (DataItemImpl)super.get(uid);
+        try {
+            di.before();
+            di.setFree();
+            di.after(TransactionManagerImpl.SUPER_XID);
+        } finally {
+            di.release();
+        }
+    }
+
+    @Override
+    public void reclaim(List<Long> uids) {
+        for(long uid : uids) {
+            short offset = (short)(uid & ((1L << 16) - 1));
+            int pgno = (int)(uid >>> 32);
+            Page pg = null;
+            try {
+                pg = pc.getPage(pgno);
+            } catch (Exception e) {
+                Panic.panic(e);
+            }
+            pIndex.addHole(pgno, offset, DataItem.getDataItemLength(pg.getData(), offset));
+            pg.release();
+        }
+    }
+
+    /**
+     * 日志写入时只进入缓冲区，提交事务前需要等待已写入的日志全部落盘，
+     * 多个同时提交的事务共享同一次刷盘
+     */
+    @Override
+    public void flushLog() {
+        logger.flush(logger.lsn());
+    }
+
+    @Override
+    public void flushLog(long lsn) {
+        logger.flush(lsn);
+    }
+
+    @Override
+    public long logCommit(long xid) {
+        return logger.log(Recover.commitLog(xid));
+    }
+
+    @Override
+    public void logAbort(long xid) {
+        logger.log(Recover.abortLog(xid));
+    }
+
     /**
      * DM 关闭
      */
@@ -148,10 +274,52 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
         pc.close();
     }
 
-    // 为xid生成update日志
-    public void logDataItem(long xid, DataItem di) {
+    // 为xid生成update日志，返回日志的LSN
+    public long logDataItem(long xid, DataItem di) {
         byte[] log = Recover.updateLog(xid, di);
-        logger.log(log);
+        long lsn = logger.log(log);
+        touchPage(di.page().getPageNumber(), xid);
+        return lsn;
+    }
+
+    /**
+     * 批量修改同一页面上的多个 DataItem：合并为一条增量更新日志，推进页面 LSN 后释放各自的写锁
+     *
+     * @param xid
+     * @param dis 已执行 before() 并完成修改的 DataItem，属于同一页面
+     */
+    @Override
+    public void afterBatch(long xid, List<DataItem> dis) {
+        Page pg = dis.get(0).page();
+        int pgno = pg.getPageNumber();
+        long lsn = logger.log(Recover.updateLog(xid, pgno, dis));
+        touchPage(pgno, xid);
+        PageX.setLSN(pg, lsn);
+        for(DataItem di : dis) {
+            di.unlock();
+        }
+    }
+
+    @Override
+    public boolean isAllVisible(int pgno) {
+        Long v = visibilityMap.get(pgno);
+        return v != null && v < 0;
+    }
+
+    @Override
+    public void setAllVisible(int pgno, long horizon) {
+        visibilityMap.compute(pgno, (k, v) -> {
+            long max = v == null ? 0 : (v < 0 ? ~v : v);
+            return max < horizon ? ~max : max;
+        });
+    }
+
+    // 事务 xid 修改了页面，清除全部可见；超级事务只修改索引、冻结和清理记录，不影响可见性
+    private void touchPage(int pgno, long xid) {
+        if(xid == TransactionManagerImpl.SUPER_XID) {
+            return;
+        }
+        visibilityMap.compute(pgno, (k, v) -> v == null ? xid : Math.max(v < 0 ? ~v : v, xid));
     }
 
     public void releaseDataItem(DataItem di) {
@@ -217,7 +385,22 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
                 Panic.panic(e);
             }
             pIndex.add(pg.getPageNumber(), PageX.getFreeSpace(pg));
+            fillHoles(pg);
             pg.release(); // 使用完 Page 后需要及时 release
         }
     }
+
+    // 依次解析页面中的 DataItem，FREE 的加入空洞
+    private void fillHoles(Page pg) {
+        byte[] raw = pg.getData();
+        int fso = PageX.getFSO(pg);
+        int offset = PageX.OF_DATA;
+        while(offset < fso) {
+            int length = DataItem.getDataItemLength(raw, offset);
+            if(DataItem.isDataItemRawFree(raw, offset) && length >= MIN_HOLE_SIZE) {
+                pIndex.addHole(pg.getPageNumber(), (short)offset, length);
+            }
+            offset += length;
+        }
+    }
 }
@@ -1,17 +1,22 @@
 package com.qihang.qhdb.backend.dm;
 
-import com.google.common.primitives.Bytes;
 import com.qihang.qhdb.backend.common.SubArray;
 import com.qihang.qhdb.backend.dm.pageCache.PageCache;
 import com.qihang.qhdb.backend.dm.dataItem.DataItem;
+import com.qihang.qhdb.backend.dm.logger.LogReader;
 import com.qihang.qhdb.backend.dm.logger.Logger;
 import com.qihang.qhdb.backend.dm.page.Page;
 import com.qihang.qhdb.backend.dm.page.PageX;
 import com.qihang.qhdb.backend.tm.TransactionManager;
+import com.qihang.qhdb.backend.tm.TransactionManagerImpl;
 import com.qihang.qhdb.backend.utils.Panic;
 import com.qihang.qhdb.backend.utils.Parser;
+import com.qihang.qhdb.backend.utils.Types;
 
+import java.nio.ByteBuffer;
 import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 
 /**
  * @Author: zhqihang
@@ -19,143 +24,295 @@ import java.util.*;
  * @Project: qhdb
  * @Description: 恢复策略
  *
- * 重做所以已完成的事务 撤销所有未完成的事务
+ * 重做所有日志 撤销所有未完成的事务
+ *
+ * 事务的提交和回滚也记录在日志中，XID 文件只是延迟写入的状态缓存，
+ * 恢复时以日志中的提交/回滚记录为准修正 XID 文件
  *
  */
 public class Recover {
 
-    // 两种日志格式
+    // 三种日志格式
     // updateLog:
     // [LogType] [XID] [UID] [OldRaw] [NewRaw]
     private static final byte LOG_TYPE_UPDATE = 1; // 更新
 
+    // deltaUpdateLog: 只记录发生变化的字节区间，Offset 相对于 DataItem 起始位置
+    // [LogType] [XID] [UID] [Offset Length Before After] [Offset Length Before After] ...
+    // 同一页面上多个 DataItem 的批量修改也使用这种格式，UID 的偏移为 0，Offset 即页内偏移
+    private static final byte LOG_TYPE_UPDATE_DELTA = 2; // 增量更新
+
     // insertLog:
     // [LogType] [XID] [Pgno] [Offset] [Raw]
     private static final byte LOG_TYPE_INSERT = 0; // 插入
 
+    // commitLog / abortLog:
+    // [LogType] [XID]
+    private static final byte LOG_TYPE_COMMIT = 3; // 提交
+    private static final byte LOG_TYPE_ABORT = 4;  // 回滚
+
 
     private static final int REDO = 0;
     private static final int UNDO = 1;
 
+    // 重做线程数不超过 8：页面缓存最少只有 10 页，且第一页常驻缓存
+    private static final int REDO_WORKERS_MAX = 8;
+    private static final int REDO_QUEUE_SIZE = 1024;
+
+    // 解析出的数据都是日志映射区域上的切片，不拷贝
     static class InsertLogInfo {
         long xid;
         int pgno;
         short offset;
-        byte[] raw;
+        ByteBuffer raw;
     }
 
     static class UpdateLogInfo {
         long xid;
         int pgno;
         short offset;
-        byte[] oldRaw;
-        byte[] newRaw;
+        ByteBuffer oldRaw;
+        ByteBuffer newRaw;
+    }
+
+
+    // 未结束事务的撤销链，只记录日志在文件中的位置，撤销时再按位置读回
+    static class UndoChain {
+        long[] positions = new long[8];
+        int size;
+
+        void add(long position) {
+            if(size == positions.length) {
+                positions = Arrays.copyOf(positions, size << 1);
+            }
+            positions[size++] = position;
+        }
+    }
+
+    // 待重做的日志，lsn 为日志结束位置
+    static class RedoLog {
+        ByteBuffer log;
+        long lsn;
+
+        RedoLog(ByteBuffer log, long lsn) {
+            this.log = log;
+            this.lsn = lsn;
+        }
+    }
+
+    /**
+     * 重做线程
+     * 日志按页号分区，同一页的日志总是交给同一个线程，线程内按日志顺序执行，保证页内的重做顺序；
+     * 不同页之间互不影响，可以并行重做。
+     */
+    static class RedoWorker extends Thread {
+        private static final RedoLog EOF = new RedoLog(null, 0);
+
+        private final BlockingQueue<RedoLog> queue = new ArrayBlockingQueue<>(REDO_QUEUE_SIZE);
+        private final PageCache pc;
+
+        RedoWorker(PageCache pc) {
+            this.pc = pc;
+        }
+
+        void submit(RedoLog log) {
+            try {
+                queue.put(log);
+            } catch (InterruptedException e) {
+                Panic.panic(e);
+            }
+        }
+
+        // 等待队列中的日志全部重做完成
+        void finish() {
+            submit(EOF);
+            try {
+                join();
+            } catch (InterruptedException e) {
+                Panic.panic(e);
+            }
+        }
+
+        @Override
+        public void run() {
+            while(true) {
+                RedoLog log = null;
+                try {
+                    log = queue.take();
+                } catch (InterruptedException e) {
+                    Panic.panic(e);
+                }
+                if(log == EOF) break;
+                try {
+                    doLog(pc, log.log, log.lsn, REDO);
+                } catch (Exception e) {
+                    Panic.panic(e);
+                }
+            }
+        }
     }
 
+    private static RedoWorker[] startRedoWorkers(PageCache pc) {
+        int n = Math.min(Runtime.getRuntime().availableProcessors(), REDO_WORKERS_MAX);
+        RedoWorker[] workers = new RedoWorker[n];
+        for(int i = 0; i < n; i ++) {
+            workers[i] = new RedoWorker(pc);
+            workers[i].start();
+        }
+        return workers;
+    }
 
+    /**
+     * 只扫描一遍日志：
+     * 记录最大页号；所有数据日志按页号分给重做线程并行重做，同时记下位置，构成事务的撤销链；
+     * 遇到提交/回滚记录时丢弃该事务的撤销链，并把状态补写到 XID 文件。
+     * 扫描结束后截断数据文件，剩下的撤销链中仍为活跃状态的事务按倒序撤销。
+     *
+     * 提交记录落盘之后才会写 XID 文件，XID 文件中已提交的事务一定能在日志中找到提交记录；
+     * XID 文件中已回滚的事务依靠可见性隐藏其修改，与运行时回滚一致，不需要撤销。
+     */
     public static void recover(TransactionManager tm, Logger lg, PageCache pc) {
         System.out.println("Recovering...");
 
-        lg.rewind();
+        Map<Long, UndoChain> undoChains = new HashMap<>();
+        RedoWorker[] workers = startRedoWorkers(pc);
+        LogReader reader = lg.reader();
         int maxPgno = 0;
+        long maxXid = 0;
         while(true) {
-            byte[] log = lg.next();
+            long position = reader.position();
+            ByteBuffer log = reader.next();
             if(log == null) break;
-            int pgno;
-            if(isInsertLog(log)) {
-                InsertLogInfo li = parseInsertLog(log);
-                pgno = li.pgno;
-            } else {
-                UpdateLogInfo li = parseUpdateLog(log);
-                pgno = li.pgno;
+            long xid = parseXid(log);
+            if(xid > maxXid) {
+                // XID 文件头的计数延迟写入，以日志中出现过的 XID 为准
+                maxXid = xid;
+                tm.advanceXID(xid);
             }
+            if(isCommitLog(log)) {
+                undoChains.remove(xid);
+                if(!tm.isCommitted(xid)) {
+                    tm.commit(xid);
+                }
+                continue;
+            }
+            if(isAbortLog(log)) {
+                undoChains.remove(xid);
+                if(!tm.isAbort(xid)) {
+                    tm.abort(xid);
+                }
+                continue;
+            }
+            int pgno = parsePgno(log);
             if(pgno > maxPgno) {
                 maxPgno = pgno;
             }
+            if(xid != TransactionManagerImpl.SUPER_XID) {
+                UndoChain chain = undoChains.get(xid);
+                if(chain == null) {
+                    chain = new UndoChain();
+                    undoChains.put(xid, chain);
+                }
+                chain.add(position);
+            }
+            workers[pgno % workers.length].submit(new RedoLog(log, reader.position()));
+        }
+        for(RedoWorker worker : workers) {
+            worker.finish();
         }
+        System.out.println("Redo Transactions Over.");
+
         if(maxPgno == 0) {
             maxPgno = 1;
         }
         pc.truncateByBgno(maxPgno);
         System.out.println("Truncate to " + maxPgno + " pages.");
 
-        redoTranscations(tm, lg, pc);
-        System.out.println("Redo Transactions Over.");
-
-        undoTranscations(tm, lg, pc);
+        undoTranscations(tm, lg, reader, pc, undoChains);
         System.out.println("Undo Transactions Over.");
 
         System.out.println("Recovery Over.");
     }
 
-
-
-
-    private static void redoTranscations(TransactionManager tm, Logger lg, PageCache pc){
-        lg.rewind();
-        while(true) {
-            byte[] log = lg.next();
-            if(log == null) break;
-            if(isInsertLog(log)) {
-                InsertLogInfo li = parseInsertLog(log);
-                long xid = li.xid;
-                if(!tm.isActive(xid)) {
-                    doInsertLog(pc, log, REDO);
-                }
-            } else {
-                UpdateLogInfo xi = parseUpdateLog(log);
-                long xid = xi.xid;
-                if(!tm.isActive(xid)) {
-                    doUpdateLog(pc, log, REDO);
-                }
+    // 对所有活跃事务的日志进行倒序undo，并补写回滚记录
+    private static void undoTranscations(TransactionManager tm, Logger lg, LogReader reader, PageCache pc, Map<Long, UndoChain> undoChains) {
+        for(Map.Entry<Long, UndoChain> entry : undoChains.entrySet()) {
+            long xid = entry.getKey();
+            if(!tm.isActive(xid)) {
+                continue;
+            }
+            UndoChain chain = entry.getValue();
+            for(int i = chain.size-1; i >= 0; i --) {
+                ByteBuffer log = reader.read(chain.positions[i]);
+                doLog(pc, log, 0, UNDO);
             }
+            lg.log(abortLog(xid));
+            tm.abort(xid);
         }
+        lg.flush(lg.lsn());
     }
 
-    private static void undoTranscations(TransactionManager tm, Logger lg, PageCache pc) {
-        Map<Long, List<byte[]>> logCache = new HashMap<>();
-        lg.rewind();
-        while(true) {
-            byte[] log = lg.next();
-            if(log == null) break;
-            if(isInsertLog(log)) {
-                InsertLogInfo li = parseInsertLog(log);
-                long xid = li.xid;
-                if(tm.isActive(xid)) {
-                    if(!logCache.containsKey(xid)) {
-                        logCache.put(xid, new ArrayList<>());
-                    }
-                    logCache.get(xid).add(log);
-                }
-            } else {
-                UpdateLogInfo xi = parseUpdateLog(log);
-                long xid = xi.xid;
-                if(tm.isActive(xid)) {
-                    if(!logCache.containsKey(xid)) {
-                        logCache.put(xid, new ArrayList<>());
-                    }
-                    logCache.get(xid).add(log);
-                }
-            }
+    /**
+     * 重做时跳过页面 LSN 已经不小于日志 LSN 的日志：这些修改在崩溃前已经随页面落盘
+     * 撤销不推进页面 LSN
+     */
+    private static void doLog(PageCache pc, ByteBuffer log, long lsn, int flag) {
+        if(isInsertLog(log)) {
+            doInsertLog(pc, log, lsn, flag);
+        } else {
+            doUpdateLog(pc, log, lsn, flag);
         }
+    }
 
-        // 对所有active log进行倒序undo
-        for(Map.Entry<Long, List<byte[]>> entry : logCache.entrySet()) {
-            List<byte[]> logs = entry.getValue();
-            for (int i = logs.size()-1; i >= 0; i --) {
-                byte[] log = logs.get(i);
-                if(isInsertLog(log)) {
-                    doInsertLog(pc, log, UNDO);
-                } else {
-                    doUpdateLog(pc, log, UNDO);
-                }
-            }
-            tm.abort(entry.getKey());
+    // 所有日志的 XID 位置相同
+    private static long parseXid(ByteBuffer log) {
+        return log.getLong(OF_XID);
+    }
+
+    private static int parsePgno(ByteBuffer log) {
+        if(isInsertLog(log)) {
+            return log.getInt(OF_INSERT_PGNO);
         }
+        long uid = log.getLong(OF_UPDATE_UID);
+        return (int)((uid >>> 32) & ((1L << 32) - 1));
+    }
+
+    private static boolean isInsertLog(ByteBuffer log) {
+        return log.get(OF_TYPE) == LOG_TYPE_INSERT;
+    }
+
+    private static boolean isCommitLog(ByteBuffer log) {
+        return log.get(OF_TYPE) == LOG_TYPE_COMMIT;
     }
 
-    private static boolean isInsertLog(byte[] log) {
-        return log[0] == LOG_TYPE_INSERT;
+    private static boolean isAbortLog(ByteBuffer log) {
+        return log.get(OF_TYPE) == LOG_TYPE_ABORT;
+    }
+
+    // 生成提交日志
+    public static byte[] commitLog(long xid) {
+        return xidLog(LOG_TYPE_COMMIT, xid);
+    }
+
+    // 生成回滚日志
+    public static byte[] abortLog(long xid) {
+        return xidLog(LOG_TYPE_ABORT, xid);
+    }
+
+    // [LogType] [XID]
+    private static byte[] xidLog(byte type, long xid) {
+        byte[] log = new byte[OF_XID+8];
+        log[OF_TYPE] = type;
+        Parser.putLong(log, OF_XID, xid);
+        return log;
+    }
+
+    // 截取 log 中 [from, to) 的切片
+    private static ByteBuffer slice(ByteBuffer log, int from, int to) {
+        ByteBuffer dup = log.duplicate();
+        dup.position(from);
+        dup.limit(to);
+        return dup.slice();
     }
 
     // [LogType] [XID] [UID] [OldRaw] [NewRaw]
@@ -164,52 +321,165 @@ public class Recover {
     private static final int OF_UPDATE_UID = OF_XID+8;
     private static final int OF_UPDATE_RAW = OF_UPDATE_UID+8;
 
+    // 增量更新日志中每个区间的头部：[Offset] [Length]
+    private static final int LEN_DELTA_HEADER = 4;
+
+    /**
+     * 生成更新日志
+     * 比较 oldRaw 和修改后的数据，只有变化的字节区间能让日志变小时才使用增量格式，
+     * 例如 setXmax 只改动 8 个字节，B+ 树节点插入只改动插入点之后的部分
+     */
     public static byte[] updateLog(long xid, DataItem di) {
-        byte[] logType = {LOG_TYPE_UPDATE};
-        byte[] xidRaw = Parser.long2Byte(xid);
-        byte[] uidRaw = Parser.long2Byte(di.getUid());
         byte[] oldRaw = di.getOldRaw();
         SubArray raw = di.getRaw();
-        byte[] newRaw = Arrays.copyOfRange(raw.raw, raw.start, raw.end);
-        return Bytes.concat(logType, xidRaw, uidRaw, oldRaw, newRaw);
+        byte[] deltaRaw = deltaRaw(oldRaw, raw, (short)0);
+        if(deltaRaw.length < oldRaw.length * 2) {
+            byte[] log = updateLogHeader(LOG_TYPE_UPDATE_DELTA, xid, di.getUid(), deltaRaw.length);
+            System.arraycopy(deltaRaw, 0, log, OF_UPDATE_RAW, deltaRaw.length);
+            return log;
+        }
+        byte[] log = updateLogHeader(LOG_TYPE_UPDATE, xid, di.getUid(), oldRaw.length * 2);
+        System.arraycopy(oldRaw, 0, log, OF_UPDATE_RAW, oldRaw.length);
+        System.arraycopy(raw.raw, raw.start, log, OF_UPDATE_RAW+oldRaw.length, oldRaw.length);
+        return log;
     }
 
-    private static UpdateLogInfo parseUpdateLog(byte[] log) {
+    // 分配一条更新日志，写好 [LogType] [XID] [UID]，其后留出 bodyLength 个字节
+    private static byte[] updateLogHeader(byte type, long xid, long uid, int bodyLength) {
+        byte[] log = new byte[OF_UPDATE_RAW + bodyLength];
+        log[OF_TYPE] = type;
+        Parser.putLong(log, OF_XID, xid);
+        Parser.putLong(log, OF_UPDATE_UID, uid);
+        return log;
+    }
+
+    /**
+     * 生成同一页面上多个 DataItem 的更新日志，一律使用增量格式
+     */
+    public static byte[] updateLog(long xid, int pgno, List<DataItem> dis) {
+        byte[][] parts = new byte[dis.size()][];
+        int bodyLength = 0;
+        for(int i = 0; i < dis.size(); i ++) {
+            DataItem di = dis.get(i);
+            short offset = (short)(di.getUid() & ((1L << 16) - 1));
+            parts[i] = deltaRaw(di.getOldRaw(), di.getRaw(), offset);
+            bodyLength += parts[i].length;
+        }
+        byte[] log = updateLogHeader(LOG_TYPE_UPDATE_DELTA, xid, Types.addressToUid(pgno, (short)0), bodyLength);
+        int pos = OF_UPDATE_RAW;
+        for(byte[] part : parts) {
+            System.arraycopy(part, 0, log, pos, part.length);
+            pos += part.length;
+        }
+        return log;
+    }
+
+    /**
+     * 找出所有发生变化的字节区间，打包成 [Offset Length Before After] 序列，Offset 加上 base
+     * 两个区间之间未变化的字节不超过 LEN_DELTA_HEADER/2 时合并，合并的代价不超过多写一个区间头
+     */
+    private static byte[] deltaRaw(byte[] oldRaw, SubArray newRaw, short base) {
+        List<int[]> ranges = new ArrayList<>();
+        int size = 0;
+        int i = 0;
+        while(i < oldRaw.length) {
+            if(oldRaw[i] == newRaw.raw[newRaw.start+i]) {
+                i ++;
+                continue;
+            }
+            int begin = i, end = i+1;
+            for(int j = end; j < oldRaw.length && j - end <= LEN_DELTA_HEADER/2; j ++) {
+                if(oldRaw[j] != newRaw.raw[newRaw.start+j]) {
+                    end = j+1;
+                }
+            }
+            ranges.add(new int[]{begin, end});
+            size += LEN_DELTA_HEADER + (end-begin)*2;
+            i = end;
+        }
+
+        byte[] delta = new byte[size];
+        int pos = 0;
+        for(int[] range : ranges) {
+            int length = range[1] - range[0];
+            Parser.putShort(delta, pos, (short)(base + range[0]));
+            Parser.putShort(delta, pos+2, (short)length);
+            pos += LEN_DELTA_HEADER;
+            System.arraycopy(oldRaw, range[0], delta, pos, length);
+            pos += length;
+            System.arraycopy(newRaw.raw, newRaw.start+range[0], delta, pos, length);
+            pos += length;
+        }
+        return delta;
+    }
+
+    private static boolean isDeltaLog(ByteBuffer log) {
+        return log.get(OF_TYPE) == LOG_TYPE_UPDATE_DELTA;
+    }
+
+    private static UpdateLogInfo parseUpdateLog(ByteBuffer log) {
         UpdateLogInfo li = new UpdateLogInfo();
-        li.xid = Parser.parseLong(Arrays.copyOfRange(log, OF_XID, OF_UPDATE_UID));
-        long uid = Parser.parseLong(Arrays.copyOfRange(log, OF_UPDATE_UID, OF_UPDATE_RAW));
+        li.xid = log.getLong(OF_XID);
+        long uid = log.getLong(OF_UPDATE_UID);
         li.offset = (short)(uid & ((1L << 16) - 1));
         uid >>>= 32;
         li.pgno = (int)(uid & ((1L << 32) - 1));
-        int length = (log.length - OF_UPDATE_RAW) / 2;
-        li.oldRaw = Arrays.copyOfRange(log, OF_UPDATE_RAW, OF_UPDATE_RAW+length);
-        li.newRaw = Arrays.copyOfRange(log, OF_UPDATE_RAW+length, OF_UPDATE_RAW+length*2);
+        int length = (log.limit() - OF_UPDATE_RAW) / 2;
+        li.oldRaw = slice(log, OF_UPDATE_RAW, OF_UPDATE_RAW+length);
+        li.newRaw = slice(log, OF_UPDATE_RAW+length, OF_UPDATE_RAW+length*2);
         return li;
     }
 
-    private static void doUpdateLog(PageCache pc, byte[] log, int flag) {
-        int pgno;
-        short offset;
-        byte[] raw;
-        if(flag == REDO) {
-            UpdateLogInfo xi = parseUpdateLog(log);
-            pgno = xi.pgno;
-            offset = xi.offset;
-            raw = xi.newRaw;
+    // 增量更新日志的每个区间解析为一个 UpdateLogInfo，offset 换算为页内偏移
+    private static List<UpdateLogInfo> parseDeltaLog(ByteBuffer log) {
+        long xid = log.getLong(OF_XID);
+        long uid = log.getLong(OF_UPDATE_UID);
+        short offset = (short)(uid & ((1L << 16) - 1));
+        int pgno = (int)((uid >>> 32) & ((1L << 32) - 1));
+        List<UpdateLogInfo> infos = new ArrayList<>();
+        int pos = OF_UPDATE_RAW;
+        while(pos < log.limit()) {
+            short rangeOffset = log.getShort(pos);
+            short length = log.getShort(pos+2);
+            pos += LEN_DELTA_HEADER;
+            UpdateLogInfo li = new UpdateLogInfo();
+            li.xid = xid;
+            li.pgno = pgno;
+            li.offset = (short)(offset + rangeOffset);
+            li.oldRaw = slice(log, pos, pos+length);
+            li.newRaw = slice(log, pos+length, pos+length*2);
+            pos += length*2;
+            infos.add(li);
+        }
+        return infos;
+    }
+
+    private static void doUpdateLog(PageCache pc, ByteBuffer log, long lsn, int flag) {
+        List<UpdateLogInfo> infos;
+        if(isDeltaLog(log)) {
+            infos = parseDeltaLog(log);
         } else {
-            UpdateLogInfo xi = parseUpdateLog(log);
-            pgno = xi.pgno;
-            offset = xi.offset;
-            raw = xi.oldRaw;
+            infos = Collections.singletonList(parseUpdateLog(log));
         }
+        if(infos.isEmpty()) return;
         Page pg = null;
         try {
-            pg = pc.getPage(pgno);
+            pg = pc.getPage(infos.get(0).pgno);
         } catch (Exception e) {
             Panic.panic(e);
         }
         try {
-            PageX.recoverUpdate(pg, raw, offset);
+            if(flag == REDO) {
+                if(PageX.getLSN(pg) >= lsn) return;
+                for(UpdateLogInfo xi : infos) {
+                    PageX.recoverUpdate(pg, xi.newRaw, xi.offset);
+                }
+                PageX.setLSN(pg, lsn);
+            } else {
+                for(UpdateLogInfo xi : infos) {
+                    PageX.recoverUpdate(pg, xi.oldRaw, xi.offset);
+                }
+            }
         } finally {
             pg.release();
         }
@@ -228,23 +498,30 @@ public class Recover {
      * @return
      */
     public static byte[] insertLog(long xid, Page pg, byte[] raw) {
-        byte[] logTypeRaw = {LOG_TYPE_INSERT};
-        byte[] xidRaw = Parser.long2Byte(xid);
-        byte[] pgnoRaw = Parser.int2Byte(pg.getPageNumber());
-        byte[] offsetRaw = Parser.short2Byte(PageX.getFSO(pg));
-        return Bytes.concat(logTypeRaw, xidRaw, pgnoRaw, offsetRaw, raw);
+        return insertLog(xid, pg.getPageNumber(), PageX.getFSO(pg), raw);
     }
 
-    private static InsertLogInfo parseInsertLog(byte[] log) {
+    // 写入空洞的插入日志，恢复时 recoverInsert 直接写回 offset 处，FSO 不变
+    public static byte[] insertLog(long xid, int pgno, short offset, byte[] raw) {
+        byte[] log = new byte[OF_INSERT_RAW + raw.length];
+        log[OF_TYPE] = LOG_TYPE_INSERT;
+        Parser.putLong(log, OF_XID, xid);
+        Parser.putInt(log, OF_INSERT_PGNO, pgno);
+        Parser.putShort(log, OF_INSERT_OFFSET, offset);
+        System.arraycopy(raw, 0, log, OF_INSERT_RAW, raw.length);
+        return log;
+    }
+
+    private static InsertLogInfo parseInsertLog(ByteBuffer log) {
         InsertLogInfo li = new InsertLogInfo();
-        li.xid = Parser.parseLong(Arrays.copyOfRange(log, OF_XID, OF_INSERT_PGNO));
-        li.pgno = Parser.parseInt(Arrays.copyOfRange(log, OF_INSERT_PGNO, OF_INSERT_OFFSET));
-        li.offset = Parser.parseShort(Arrays.copyOfRange(log, OF_INSERT_OFFSET, OF_INSERT_RAW));
-        li.raw = Arrays.copyOfRange(log, OF_INSERT_RAW, log.length);
+        li.xid = log.getLong(OF_XID);
+        li.pgno = log.getInt(OF_INSERT_PGNO);
+        li.offset = log.getShort(OF_INSERT_OFFSET);
+        li.raw = slice(log, OF_INSERT_RAW, log.limit());
         return li;
     }
 
-    private static void doInsertLog(PageCache pc, byte[] log, int flag) {
+    private static void doInsertLog(PageCache pc, ByteBuffer log, long lsn, int flag) {
         InsertLogInfo li = parseInsertLog(log);
         Page pg = null;
         try {
@@ -254,9 +531,16 @@ public class Recover {
         }
         try {
             if(flag == UNDO) {
-                DataItem.setDataItemRawInvalid(li.raw);
+                // 日志切片只读，拷贝一份再置为非法
+                byte[] raw = new byte[li.raw.remaining()];
+                li.raw.duplicate().get(raw);
+                DataItem.setDataItemRawInvalid(raw);
+                PageX.recoverInsert(pg, ByteBuffer.wrap(raw), li.offset);
+            } else {
+                if(PageX.getLSN(pg) >= lsn) return;
+                PageX.recoverInsert(pg, li.raw, li.offset);
+                PageX.setLSN(pg, lsn);
             }
-            PageX.recoverInsert(pg, li.raw, li.offset);
         } finally {
             pg.release();
         }
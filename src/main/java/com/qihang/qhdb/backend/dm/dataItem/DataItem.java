@@ -1,13 +1,11 @@
 package com.qihang.qhdb.backend.dm.dataItem;
 
-import com.google.common.primitives.Bytes;
 import com.qihang.qhdb.backend.common.SubArray;
 import com.qihang.qhdb.backend.dm.DataManagerImpl;
 import com.qihang.qhdb.backend.dm.page.Page;
 import com.qihang.qhdb.backend.utils.Parser;
 import com.qihang.qhdb.backend.utils.Types;
 
-import java.util.Arrays;
 
 /**
  * @Author: zhqihang
@@ -44,15 +42,16 @@ public interface DataItem {
     SubArray getRaw();
 
     public static byte[] wrapDataItemRaw(byte[] raw) {
-        byte[] valid = new byte[1];
-        byte[] size = Parser.short2Byte((short)raw.length);
-        return Bytes.concat(valid, size, raw);
+        byte[] item = new byte[DataItemImpl.OF_DATA + raw.length];
+        Parser.putShort(item, DataItemImpl.OF_SIZE, (short)raw.length);
+        System.arraycopy(raw, 0, item, DataItemImpl.OF_DATA, raw.length);
+        return item;
     }
 
     // 从页面的offset处解析处dataitem
     public static DataItem parseDataItem(Page pg, short offset, DataManagerImpl dm) {
         byte[] raw = pg.getData();
-        short size = Parser.parseShort(Arrays.copyOfRange(raw, offset+DataItemImpl.OF_SIZE, offset+DataItemImpl.OF_DATA));
+        short size = Parser.getShort(raw, offset+DataItemImpl.OF_SIZE);
         short length = (short)(size + DataItemImpl.OF_DATA);
         long uid = Types.addressToUid(pg.getPageNumber(), offset);
         return new DataItemImpl(new SubArray(raw, offset, offset+length), new byte[length], pg, uid, dm);
@@ -61,4 +60,23 @@ public interface DataItem {
     public static void setDataItemRawInvalid(byte[] raw) {
         raw[DataItemImpl.OF_VALID] = (byte)1;
     }
+
+    // 一个总长为 length 的空洞的 DataItem 头
+    public static byte[] wrapFreeRaw(int length) {
+        byte[] head = new byte[DataItemImpl.OF_DATA];
+        head[DataItemImpl.OF_VALID] = DataItemImpl.FREE;
+        Parser.putShort(head, DataItemImpl.OF_SIZE, (short)(length - DataItemImpl.OF_DATA));
+        return head;
+    }
+
+    // 页面 offset 处 DataItem 的总长
+    public static int getDataItemLength(byte[] raw, int offset) {
+        short size = Parser.getShort(raw, offset+DataItemImpl.OF_SIZE);
+        return size + DataItemImpl.OF_DATA;
+    }
+
+    // 页面 offset 处的 DataItem 是否已被清理
+    public static boolean isDataItemRawFree(byte[] raw, int offset) {
+        return raw[offset+DataItemImpl.OF_VALID] == DataItemImpl.FREE;
+    }
 }
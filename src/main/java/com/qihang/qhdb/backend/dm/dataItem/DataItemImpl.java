@@ -3,6 +3,7 @@ package com.qihang.qhdb.backend.dm.dataItem;
 import com.qihang.qhdb.backend.common.SubArray;
 import com.qihang.qhdb.backend.dm.DataManagerImpl;
 import com.qihang.qhdb.backend.dm.page.Page;
+import com.qihang.qhdb.backend.dm.page.PageX;
 
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReadWriteLock;
@@ -17,7 +18,7 @@ import java.util.concurrent.locks.ReentrantReadWriteLock;
  * dataItem 是页面中指定数据的打包结构，也是具体操作数据的结构
  * dataItem 结构如下：
  * [ValidFlag] [DataSize] [Data]
- * ValidFlag 1字节，0为合法，1为非法
+ * ValidFlag 1字节，0为合法，1为非法，2为已被清理（索引中已没有指向它的项，空间可以复用）
  * DataSize  2字节，标识Data的长度
  *
  */
@@ -26,6 +27,7 @@ public class DataItemImpl implements DataItem{
     static final int OF_VALID = 0;
     static final int OF_SIZE = 1;
     static final int OF_DATA = 3;
+    static final byte FREE = 2;
 
     private SubArray raw;   // 子区间数据,共享内存
     private byte[] oldRaw;  // 暂存需要修改的数据内容
@@ -56,6 +58,17 @@ public class DataItemImpl implements DataItem{
         return raw.raw[raw.start+OF_VALID] == (byte)0;
     }
 
+    public boolean isFree() {
+        return raw.raw[raw.start+OF_VALID] == FREE;
+    }
+
+    /**
+     * 标记为已被清理，需要在 before() 和 after() 之间调用
+     */
+    public void setFree() {
+        raw.raw[raw.start+OF_VALID] = FREE;
+    }
+
     /**
      * 通过共享内存的方式获取指定的 DATA 数据
      * @return
@@ -88,12 +101,13 @@ public class DataItemImpl implements DataItem{
 
     /**
      * 修改数据完成后的操作
-     * 记录此事务的修改操作到日志，关闭写锁
+     * 记录此事务的修改操作到日志，推进页面的LSN，关闭写锁
      * @param xid
      */
     @Override
     public void after(long xid) {
-        dm.logDataItem(xid, this);
+        long lsn = dm.logDataItem(xid, this);
+        PageX.setLSN(pg, lsn);
         wLock.unlock();
     }
 
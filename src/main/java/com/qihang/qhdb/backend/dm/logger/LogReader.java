@@ -0,0 +1,140 @@
+package com.qihang.qhdb.backend.dm.logger;
+
+import com.qihang.qhdb.backend.utils.Panic;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.function.LongSupplier;
+
+/**
+ * @Author: zhqihang
+ * @Date: 2024/03/13
+ * @Project: qhdb
+ * @Description: 基于内存映射的日志迭代器
+ *
+ * 日志文件按窗口映射到内存，next() 和 read() 直接返回映射区域上的只读切片，不拷贝日志内容。
+ * 只读取 limit 之前（已落盘）的日志，limit 推进后可以继续读到新写入的日志，可用于恢复和追踪日志。
+ * 每个 LogReader 有独立的读指针，非线程安全。
+ *
+ * 日志格式：[Size] [Checksum] [Data]
+ */
+public class LogReader {
+
+    static final int OF_SIZE = 0;
+    static final int OF_CHECKSUM = OF_SIZE + 4;
+    static final int OF_DATA = OF_CHECKSUM + 4;
+
+    private static final int SEED = 13331;
+    // 映射窗口大小，窗口起点按窗口大小对齐，跨过窗口末尾的日志把窗口延长到日志结尾
+    private static final long WINDOW_SIZE = 64L << 20;
+
+    private FileChannel fc;
+    private LongSupplier limit;     // 可读取的日志结束位置
+
+    private MappedByteBuffer window;
+    private long windowStart;
+    private long position;          // 下一条日志在文件中的位置
+
+    LogReader(FileChannel fc, LongSupplier limit) {
+        this.fc = fc;
+        this.limit = limit;
+        rewind();
+    }
+
+    public void rewind() {
+        position = 4;
+    }
+
+    // 下一条日志在文件中的位置
+    public long position() {
+        return position;
+    }
+
+    /**
+     * 读取下一条日志的 Data 部分
+     * @return 只读切片，position 为 0；到达末尾或校验失败返回 null
+     */
+    public ByteBuffer next() {
+        ByteBuffer log = readRecord(position);
+        if (log == null) return null;
+        position += log.remaining();
+        return data(log);
+    }
+
+    /**
+     * 读取 pos 处日志的 Data 部分，不移动读指针
+     */
+    public ByteBuffer read(long pos) {
+        ByteBuffer log = readRecord(pos);
+        if (log == null) return null;
+        return data(log);
+    }
+
+    // 读取下一条完整日志（包含 Size 和 Checksum），用于计算整个文件的校验和
+    ByteBuffer nextRecord() {
+        ByteBuffer log = readRecord(position);
+        if (log == null) return null;
+        position += log.remaining();
+        return log;
+    }
+
+    private ByteBuffer readRecord(long pos) {
+        long end = limit.getAsLong();
+        if (pos + OF_DATA >= end) {
+            return null;
+        }
+        map(pos, OF_DATA, end);
+        int index = (int) (pos - windowStart);
+        int size = window.getInt(index + OF_SIZE);
+        if (size < 0 || pos + OF_DATA + size > end) {
+            return null;
+        }
+        map(pos, OF_DATA + size, end);
+        index = (int) (pos - windowStart);
+        int checksum = window.getInt(index + OF_CHECKSUM);
+
+        ByteBuffer log = window.duplicate();
+        log.position(index);
+        log.limit(index + OF_DATA + size);
+        log = log.slice();
+        if (calChecksum(0, log, OF_DATA) != checksum) {
+            return null;
+        }
+        return log;
+    }
+
+    private static ByteBuffer data(ByteBuffer log) {
+        ByteBuffer dup = log.duplicate();
+        dup.position(OF_DATA);
+        return dup.slice();
+    }
+
+    /**
+     * 保证 [pos, pos+length) 位于当前映射窗口内
+     * 窗口从 pos 所在的对齐位置开始，恢复时倒序 undo 读取前面的日志也能复用同一个窗口，
+     * 不会每条日志映射一次
+     */
+    private void map(long pos, int length, long end) {
+        if (window != null && pos >= windowStart && pos + length <= windowStart + window.limit()) {
+            return;
+        }
+        long start = pos - pos % WINDOW_SIZE;
+        long size = Math.min(Math.max(WINDOW_SIZE, pos + length - start), end - start);
+        try {
+            window = fc.map(FileChannel.MapMode.READ_ONLY, start, size);
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+        windowStart = start;
+    }
+
+    // 计算 buf 中从 from 开始的内容的校验和
+    static int calChecksum(int xCheck, ByteBuffer buf, int from) {
+        for (int i = from; i < buf.limit(); i++) {
+            xCheck = xCheck * SEED + buf.get(i);
+        }
+        return xCheck;
+    }
+}
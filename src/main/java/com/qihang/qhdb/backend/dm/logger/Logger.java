@@ -19,13 +19,15 @@ import java.nio.channels.FileChannel;
  */
 public interface Logger {
 
-    void log(byte[] data);
+    long log(byte[] data); // 写入一条日志，返回其LSN（日志结束位置），返回时日志不一定已落盘
 
-    void truncate(long x) throws Exception;
+    void flush(long lsn); // 保证LSN之前的日志都已落盘
+
+    long lsn(); // 已写入缓冲区的日志结束位置
 
-    byte[] next();
+    void truncate(long x) throws Exception;
 
-    void rewind();
+    LogReader reader(); // 基于内存映射的日志迭代器，不拷贝日志内容
 
     void close();
 
@@ -1,6 +1,5 @@
 package com.qihang.qhdb.backend.dm.logger;
 
-import com.google.common.primitives.Bytes;
 import com.qihang.qhdb.backend.utils.Panic;
 import com.qihang.qhdb.backend.utils.Parser;
 import com.qihang.qhdb.common.Error;
@@ -9,38 +8,55 @@ import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
-import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.LockSupport;
 import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * @Author: zhqihang
  * @Date: 2024/03/13
  * @Project: qhdb
- * @Description: ...
+ * @Description: 日志实现类
+ *
+ * 写日志不加全局锁：
+ *      写入者通过 reserved.getAndAdd 预留一段 LSN 区间，把日志拷贝进环形缓冲区的对应位置，
+ *      再按 LSN 顺序推进 published，表示这之前的日志都已拷贝完成。
+ * 后台的刷盘线程把 [flushedLSN, published) 之间的日志写入文件、更新总校验和并 force，
+ * 需要持久化的调用方（事务提交、数据页写回）通过 flush(lsn) 等待刷盘线程。
+ * LSN 即日志在文件中的位置，缓冲区下标为 LSN % BUFFER_SIZE。
  */
 public class LoggerImpl implements Logger {
 
     private static final int SEED = 13331;
 
-    private static final int OF_SIZE = 0;
-    private static final int OF_CHECKSUM = OF_SIZE + 4;
-    private static final int OF_DATA = OF_CHECKSUM + 4;
-
     public static final String LOG_SUFFIX = ".log";
 
+    // 日志缓冲区大小，单条日志最大约为两个页面，远小于缓冲区
+    private static final int BUFFER_SIZE = 1 << 20;
+    // 没有刷盘请求时，刷盘线程也会定期把缓冲区写入文件
+    private static final long FLUSH_INTERVAL_NANOS = 10_000_000L;
+
     private RandomAccessFile file;
     private FileChannel fc;
     private Lock lock;
 
-    private long position;  // 当前日志指针的位置
     private long fileSize;  // 初始化时记录，log操作不更新
-    private int xChecksum;
+    private int xChecksum;  // 只由刷盘线程更新
+
+    private ByteBuffer buffer;          // 环形日志缓冲区
+    private AtomicLong reserved;        // 已经预留出去的 LSN 上界
+    private AtomicLong published;       // 已经拷贝进缓冲区的连续 LSN 上界
+    private AtomicLong flushedLSN;      // 已经落盘的日志结束位置
+    private final Object flushSignal = new Object();    // 刷盘进度的通知
+    private Thread flusher;
+    private volatile boolean closed;
 
     LoggerImpl(RandomAccessFile raf, FileChannel fc) {
         this.file = raf;
         this.fc = fc;
         lock = new ReentrantLock();
+        flushedLSN = new AtomicLong();
     }
 
     LoggerImpl(RandomAccessFile raf, FileChannel fc, int xChecksum) {
@@ -48,6 +64,19 @@ public class LoggerImpl implements Logger {
         this.fc = fc;
         this.xChecksum = xChecksum;
         lock = new ReentrantLock();
+        flushedLSN = new AtomicLong();
+        startFlusher(4);
+    }
+
+    // 从文件末尾 end 开始接受新的日志
+    private void startFlusher(long end) {
+        buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        reserved = new AtomicLong(end);
+        published = new AtomicLong(end);
+        flushedLSN.set(end);
+        flusher = new Thread(this::flushLoop, "log-flusher");
+        flusher.setDaemon(true);
+        flusher.start();
     }
 
     void init() {
@@ -68,7 +97,7 @@ public class LoggerImpl implements Logger {
         } catch (IOException e) {
             Panic.panic(e);
         }
-        int xChecksum = Parser.parseInt(raw.array());
+        int xChecksum = raw.getInt(0);
         this.fileSize = size;
         this.xChecksum = xChecksum;
 
@@ -77,29 +106,32 @@ public class LoggerImpl implements Logger {
 
     // 检查并移除bad tail
     private void checkAndRemoveTail() {
-        rewind();
+        LogReader reader = new LogReader(fc, () -> fileSize);
 
         int xCheck = 0;
         while (true) {
-            byte[] log = internNext();
+            ByteBuffer log = reader.nextRecord();
             if (log == null) break;
-            xCheck = calChecksum(xCheck, log);
+            xCheck = LogReader.calChecksum(xCheck, log, 0);
         }
         if (xCheck != xChecksum) {
             Panic.panic(Error.BadLogFileException);
         }
 
-        try {
-            truncate(position);
-        } catch (Exception e) {
-            Panic.panic(e);
+        long position = reader.position();
+        if (position < fileSize) {
+            try {
+                truncate(position);
+            } catch (Exception e) {
+                Panic.panic(e);
+            }
         }
         try {
             file.seek(position);
         } catch (IOException e) {
             Panic.panic(e);
         }
-        rewind();
+        startFlusher(position);
     }
 
     /**
@@ -116,67 +148,107 @@ public class LoggerImpl implements Logger {
         return xCheck;
     }
 
-    /**
-     * 从数据库文件中读取下一个记录
-     * @return
-     */
-    private byte[] internNext() {
-        // 检查当前位置 + 数据偏移量 和 文件大小的关系
-        if (position + OF_DATA >= fileSize) {
-            return null; // 到达文件末尾 返回null
-        }
-        //
-        ByteBuffer tmp = ByteBuffer.allocate(4);
-        try {
-            fc.position(position);
-            fc.read(tmp);
-        } catch (IOException e) {
-            Panic.panic(e);
+    @Override
+    public long log(byte[] data) {
+        byte[] log = wrapLog(data);
+        // 预留 LSN 区间
+        long start = reserved.getAndAdd(log.length);
+        long end = start + log.length;
+        // 缓冲区中对应的位置还有未落盘的日志，等待刷盘线程腾出空间
+        if (end - flushedLSN.get() > BUFFER_SIZE) {
+            waitFlushed(end - BUFFER_SIZE);
         }
-        int size = Parser.parseInt(tmp.array());
-        if (position + size + OF_DATA > fileSize) {
-            return null;
+        // 与其他写入者并行拷贝
+        copyIn(start, log);
+        // 按 LSN 顺序发布，前面的日志拷贝完成后才能推进
+        while (published.get() != start) {
+            Thread.yield();
         }
+        published.set(end);
+        return end;
+    }
 
-        ByteBuffer buf = ByteBuffer.allocate(OF_DATA + size);
-        try {
-            fc.position(position);
-            fc.read(buf);
-        } catch (IOException e) {
-            Panic.panic(e);
+    private void copyIn(long lsn, byte[] log) {
+        ByteBuffer dup = buffer.duplicate();
+        int index = (int) (lsn % BUFFER_SIZE);
+        int first = Math.min(log.length, BUFFER_SIZE - index);
+        dup.position(index);
+        dup.put(log, 0, first);
+        if (first < log.length) {
+            dup.position(0);
+            dup.put(log, first, log.length - first);
         }
+    }
 
-        byte[] log = buf.array();
-        int checkSum1 = calChecksum(0, Arrays.copyOfRange(log, OF_DATA, log.length));
-        int checkSum2 = Parser.parseInt(Arrays.copyOfRange(log, OF_CHECKSUM, OF_DATA));
-        if (checkSum1 != checkSum2) {
-            return null;
+    /**
+     * WAL 规则：数据页写回之前，覆盖该页的日志必须已经落盘
+     * 事务提交前也需要调用，已落盘的部分直接返回，否则等待刷盘线程
+     */
+    @Override
+    public void flush(long lsn) {
+        if (lsn <= flushedLSN.get()) {
+            return;
         }
-        position += log.length;
-        return log;
+        waitFlushed(lsn);
     }
 
     @Override
-    public void log(byte[] data) {
-        byte[] log = wrapLog(data);
-        ByteBuffer buf = ByteBuffer.wrap(log);
-        lock.lock();
-        try {
-            fc.position(fc.size());
-            fc.write(buf);
-        } catch (IOException e) {
-            Panic.panic(e);
-        } finally {
-            lock.unlock();
+    public long lsn() {
+        return published.get();
+    }
+
+    private void waitFlushed(long lsn) {
+        LockSupport.unpark(flusher);
+        synchronized (flushSignal) {
+            while (flushedLSN.get() < lsn) {
+                try {
+                    flushSignal.wait();
+                } catch (InterruptedException e) {
+                    Panic.panic(e);
+                }
+            }
         }
-        updateXChecksum(log);
     }
 
-    private void updateXChecksum(byte[] log) {
-        this.xChecksum = calChecksum(this.xChecksum, log);
+    // 刷盘线程：把已发布的日志写入文件
+    private void flushLoop() {
+        while (true) {
+            long start = flushedLSN.get();
+            long end = published.get();
+            if (end > start) {
+                writeOut(start, end);
+                flushedLSN.set(end);
+                synchronized (flushSignal) {
+                    flushSignal.notifyAll();
+                }
+                continue;
+            }
+            if (closed) {
+                break;
+            }
+            LockSupport.parkNanos(FLUSH_INTERVAL_NANOS);
+        }
+    }
+
+    // 将缓冲区中 [start, end) 写入文件，更新总校验和后 force
+    private void writeOut(long start, long end) {
         try {
-            fc.position(0);
-            fc.write(ByteBuffer.wrap(Parser.int2Byte(xChecksum)));
+            long lsn = start;
+            while (lsn < end) {
+                int index = (int) (lsn % BUFFER_SIZE);
+                int length = (int) Math.min(end - lsn, BUFFER_SIZE - index);
+                ByteBuffer dup = buffer.duplicate();
+                dup.position(index);
+                dup.limit(index + length);
+                for (int i = index; i < index + length; i++) {
+                    xChecksum = xChecksum * SEED + dup.get(i);
+                }
+                while (dup.hasRemaining()) {
+                    fc.write(dup, lsn + dup.position() - index);
+                }
+                lsn += length;
+            }
+            fc.write(ByteBuffer.wrap(Parser.int2Byte(xChecksum)), 0);
             fc.force(false);
         } catch (IOException e) {
             Panic.panic(e);
@@ -184,9 +256,11 @@ public class LoggerImpl implements Logger {
     }
 
     private byte[] wrapLog(byte[] data) {
-        byte[] checksum = Parser.int2Byte(calChecksum(0, data));
-        byte[] size = Parser.int2Byte(data.length);
-        return Bytes.concat(size, checksum, data);
+        byte[] log = new byte[LogReader.OF_DATA + data.length];
+        Parser.putInt(log, LogReader.OF_SIZE, data.length);
+        Parser.putInt(log, LogReader.OF_CHECKSUM, calChecksum(0, data));
+        System.arraycopy(data, 0, log, LogReader.OF_DATA, data.length);
+        return log;
     }
 
     @Override
@@ -199,25 +273,24 @@ public class LoggerImpl implements Logger {
         }
     }
 
+    /**
+     * 返回一个新的日志迭代器，只读取已经落盘的日志
+     */
     @Override
-    public byte[] next() {
-        lock.lock();
-        try {
-            byte[] log = internNext();
-            if (log == null) return null;
-            return Arrays.copyOfRange(log, OF_DATA, log.length);
-        } finally {
-            lock.unlock();
-        }
-    }
-
-    @Override
-    public void rewind() {
-        position = 4;
+    public LogReader reader() {
+        return new LogReader(fc, flushedLSN::get);
     }
 
     @Override
     public void close() {
+        // 等待刷盘线程把缓冲区中的日志全部写入文件
+        closed = true;
+        LockSupport.unpark(flusher);
+        try {
+            flusher.join();
+        } catch (InterruptedException e) {
+            Panic.panic(e);
+        }
         try {
             fc.close();
             file.close();
@@ -3,7 +3,7 @@ package com.qihang.qhdb.backend.dm.page;
 import com.qihang.qhdb.backend.dm.pageCache.PageCache;
 import com.qihang.qhdb.backend.utils.Parser;
 
-import java.util.Arrays;
+import java.nio.ByteBuffer;
 
 /**
  * @Author: zhqihang
@@ -12,13 +12,18 @@ import java.util.Arrays;
  * @Description: 数据页管理 普通页
  *
  * MYDB 对于普通数据页的管理就比较简单了。
- * 一个普通页面以一个 2 字节无符号数起始，表示这一页的空闲位置的偏移。剩下的部分都是实际存储的数据。
+ * 一个普通页面以一个 2 字节无符号数起始，表示这一页的空闲位置的偏移。
+ * 接着是 8 字节的页面 LSN，即最后一条修改本页的日志在日志文件中的结束位置。剩下的部分都是实际存储的数据。
  * 所以对普通页的管理，基本都是围绕着对 FSO（Free Space Offset）进行的。
+ *
+ * [FSO] [LSN] [Data]
+ * 2byte 8byte
  */
 public class PageX {
 
     private static final short OF_FREE = 0;
-    private static final short OF_DATA = 2;
+    private static final short OF_LSN = OF_FREE + 2;
+    public static final short OF_DATA = OF_LSN + 8;
     public static final int MAX_FREE_SPACE = PageCache.PAGE_SIZE - OF_DATA;
 
     public static byte[] initRaw() {
@@ -36,8 +41,14 @@ public class PageX {
         return offset;
     }
 
+    // 将raw写入pg中offset处的空洞，空洞位于FSO之前，不修改FSO
+    public static void insertAt(Page pg, byte[] raw, short offset) {
+        pg.setDirty(true);
+        System.arraycopy(raw, 0, pg.getData(), offset, raw.length);
+    }
+
     private static void setFSO(byte[] raw, short ofData) {
-        System.arraycopy(Parser.short2Byte(ofData), 0, raw, OF_FREE, OF_DATA);
+        Parser.putShort(raw, OF_FREE, ofData);
     }
 
     // 获取pg的FSO
@@ -45,7 +56,28 @@ public class PageX {
         return getFSO(pg.getData());
     }
     private static short getFSO(byte[] raw) {
-        return Parser.parseShort(Arrays.copyOfRange(raw, 0, 2));
+        return Parser.getShort(raw, OF_FREE);
+    }
+
+    // 获取pg的LSN
+    public static long getLSN(Page pg) {
+        return getLSN(pg.getData());
+    }
+    private static long getLSN(byte[] raw) {
+        return Parser.getLong(raw, OF_LSN);
+    }
+
+    // 将pg的LSN推进到lsn，同一页上的多个修改可能乱序完成，只保留较大的LSN
+    public static void setLSN(Page pg, long lsn) {
+        pg.lock();
+        try {
+            if(getLSN(pg.getData()) < lsn) {
+                pg.setDirty(true);
+                Parser.putLong(pg.getData(), OF_LSN, lsn);
+            }
+        } finally {
+            pg.unlock();
+        }
     }
 
     // 获取页面的空闲空间大小
@@ -58,19 +90,21 @@ public class PageX {
      */
 
     // 将raw插入pg中的offset位置，并将pg的offset设置为较大的offset
-    public static void recoverInsert(Page pg, byte[] raw, short offset) {
+    // raw 为日志上的切片，直接拷贝进页面
+    public static void recoverInsert(Page pg, ByteBuffer raw, short offset) {
         pg.setDirty(true);
-        System.arraycopy(raw, 0, pg.getData(), offset, raw.length);
+        int length = raw.remaining();
+        raw.duplicate().get(pg.getData(), offset, length);
 
         short rawFSO = getFSO(pg.getData());
-        if(rawFSO < offset + raw.length) {
-            setFSO(pg.getData(), (short)(offset+raw.length));
+        if(rawFSO < offset + length) {
+            setFSO(pg.getData(), (short)(offset+length));
         }
     }
 
     // 将raw插入pg中的offset位置，不更新update
-    public static void recoverUpdate(Page pg, byte[] raw, short offset) {
+    public static void recoverUpdate(Page pg, ByteBuffer raw, short offset) {
         pg.setDirty(true);
-        System.arraycopy(raw, 0, pg.getData(), offset, raw.length);
+        raw.duplicate().get(pg.getData(), offset, raw.remaining());
     }
 }
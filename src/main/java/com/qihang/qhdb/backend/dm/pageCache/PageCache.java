@@ -1,5 +1,6 @@
 package com.qihang.qhdb.backend.dm.pageCache;
 
+import com.qihang.qhdb.backend.dm.logger.Logger;
 import com.qihang.qhdb.backend.dm.page.Page;
 import com.qihang.qhdb.backend.utils.Panic;
 import com.qihang.qhdb.common.Error;
@@ -33,6 +34,8 @@ public interface PageCache {
 
     void flushPage(Page pg);
 
+    void setLogger(Logger lg); // 写回页面前按页面LSN刷日志
+
     public static PageCacheImpl create(String path, long memory) {
         File f = new File(path+PageCacheImpl.DB_SUFFIX);
         try {
@@ -1,8 +1,10 @@
 package com.qihang.qhdb.backend.dm.pageCache;
 
 import com.qihang.qhdb.backend.common.AbstractCache;
+import com.qihang.qhdb.backend.dm.logger.Logger;
 import com.qihang.qhdb.backend.dm.page.Page;
 import com.qihang.qhdb.backend.dm.page.PageImpl;
+import com.qihang.qhdb.backend.dm.page.PageX;
 import com.qihang.qhdb.backend.utils.Panic;
 import com.qihang.qhdb.common.Error;
 
@@ -10,8 +12,13 @@ import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.LockSupport;
 import java.util.concurrent.locks.ReentrantLock;
 
 /**
@@ -19,6 +26,11 @@ import java.util.concurrent.locks.ReentrantLock;
  * @Date: 2024/03/12
  * @Project: qhdb
  * @Description: 页面缓存实现类  继承抽象缓存框架 并实现两个抽象方法
+ *
+ * 脏页面被驱逐时不在缓存锁内写回，只放入 writeBack，由后台的写回线程批量处理：
+ * 在页面锁下读出页面 LSN，不持有任何锁等待日志落盘（WAL），再在 fileLock 下写入文件。
+ * 等待写回的页面再次被获取时，在 fileLock 下直接从 writeBack 取回，仍然是脏页面，
+ * 写回线程也只在 fileLock 下写出仍留在 writeBack 中的页面，读到的页面内容不会比文件旧。
  */
 public class PageCacheImpl extends AbstractCache<Page> implements PageCache {
 
@@ -30,6 +42,16 @@ public class PageCacheImpl extends AbstractCache<Page> implements PageCache {
     private Lock fileLock;
 
     private AtomicInteger pageNumbers; // 记录当前打开的数据库文件页数
+    private Logger logger; // 写回页面前保证 WAL
+
+    // 等待写回的页面超过它时，释放页面的线程等待写回线程
+    private final int maxWriteBack;
+    // 写回线程空闲时的检查间隔
+    private static final long WRITE_BACK_INTERVAL_NANOS = 10_000_000L;
+    private Map<Integer, Page> writeBack;    // 已被驱逐、等待写回的脏页面
+    private final Object writeBackSignal = new Object(); // 写回进度的通知
+    private Thread writer;
+    private volatile boolean closed;
 
     // 构造函数
     PageCacheImpl(RandomAccessFile file, FileChannel fileChannel, int maxResource) {
@@ -47,6 +69,11 @@ public class PageCacheImpl extends AbstractCache<Page> implements PageCache {
         this.fc = fileChannel;
         this.fileLock = new ReentrantLock();
         this.pageNumbers = new AtomicInteger((int) length / PAGE_SIZE);
+        this.maxWriteBack = maxResource;
+        this.writeBack = new ConcurrentHashMap<>();
+        this.writer = new Thread(this::writeBackLoop, "page-writer");
+        writer.setDaemon(true);
+        writer.start();
     }
 
     /**
@@ -65,25 +92,31 @@ public class PageCacheImpl extends AbstractCache<Page> implements PageCache {
         ByteBuffer buf = ByteBuffer.allocate(PAGE_SIZE);
         fileLock.lock();
         try {
+            // 还没写回的页面比文件中的新，直接取回
+            Page pg = writeBack.remove(pgno);
+            if (pg != null) {
+                return pg;
+            }
             fc.position(offset);
             fc.read(buf);
         } catch (IOException e) {
             Panic.panic(e);
+        } finally {
+            fileLock.unlock();
         }
-        fileLock.unlock();
         return new PageImpl(pgno, buf.array(), this);
     }
 
     /**
-     * 驱逐页面：判断页面是否为脏页面，决定是否需要回写文件系统
+     * 驱逐页面：脏页面交给写回线程，不在缓存锁内等待日志和磁盘
      *
      * @param pg
      */
     @Override
     protected void releaseForCache(Page pg) {
         if (pg.isDirty()) {
-            flush(pg);
-            pg.setDirty(false);
+            writeBack.put(pg.getPageNumber(), pg);
+            LockSupport.unpark(writer);
         }
     }
 
@@ -104,6 +137,14 @@ public class PageCacheImpl extends AbstractCache<Page> implements PageCache {
     @Override
     public void close() {
         super.close();
+        // 等待写回线程写出全部脏页面
+        closed = true;
+        LockSupport.unpark(writer);
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Panic.panic(e);
+        }
         try {
             fc.close();
             file.close();
@@ -115,6 +156,73 @@ public class PageCacheImpl extends AbstractCache<Page> implements PageCache {
     @Override
     public void release(Page page) {
         release((long) page.getPageNumber());
+        // 写回跟不上时在缓存锁外等待，限制驱逐出去的页面占用的内存
+        if (writeBack.size() > maxWriteBack) {
+            waitWriteBack();
+        }
+    }
+
+    private void waitWriteBack() {
+        LockSupport.unpark(writer);
+        synchronized (writeBackSignal) {
+            while (writeBack.size() > maxWriteBack) {
+                try {
+                    writeBackSignal.wait();
+                } catch (InterruptedException e) {
+                    Panic.panic(e);
+                }
+            }
+        }
+    }
+
+    // 写回线程：等待覆盖一批页面的日志落盘后，写出其中仍未被取回的页面
+    private void writeBackLoop() {
+        while (true) {
+            List<Page> batch = new ArrayList<>(writeBack.values());
+            if (batch.isEmpty()) {
+                if (closed) {
+                    break;
+                }
+                LockSupport.parkNanos(WRITE_BACK_INTERVAL_NANOS);
+                continue;
+            }
+            long lsn = 0;
+            for (Page pg : batch) {
+                lsn = Math.max(lsn, pageLSN(pg));
+            }
+            // 第一页和新建页面的 LSN 为 0，不会触发刷盘
+            if (logger != null) {
+                logger.flush(lsn);
+            }
+            fileLock.lock();
+            try {
+                // fileLock 下页面不会被取回修改，取回后再次驱逐的页面 LSN 可能已经推进，留到下一批
+                for (Page pg : batch) {
+                    if (writeBack.get(pg.getPageNumber()) == pg && pageLSN(pg) <= lsn) {
+                        write(pg);
+                        pg.setDirty(false);
+                        writeBack.remove(pg.getPageNumber());
+                    }
+                }
+                fc.force(false);
+            } catch (IOException e) {
+                Panic.panic(e);
+            } finally {
+                fileLock.unlock();
+            }
+            synchronized (writeBackSignal) {
+                writeBackSignal.notifyAll();
+            }
+        }
+    }
+
+    private static long pageLSN(Page pg) {
+        pg.lock();
+        try {
+            return PageX.getLSN(pg);
+        } finally {
+            pg.unlock();
+        }
     }
 
     @Override
@@ -127,15 +235,22 @@ public class PageCacheImpl extends AbstractCache<Page> implements PageCache {
         flush(pg);
     }
 
+    @Override
+    public void setLogger(Logger lg) {
+        this.logger = lg;
+    }
+
+    // 直接写回页面，用于新建页面和第一页
     private void flush(Page pg) {
-        int pgno = pg.getPageNumber();
-        long offset = pageOffset(pgno);
+        // 先保证覆盖该页修改的日志已经落盘
+        // 第一页和新建页面的 LSN 为 0，不会触发刷盘
+        if (logger != null) {
+            logger.flush(pageLSN(pg));
+        }
 
         fileLock.lock();
         try {
-            ByteBuffer buf = ByteBuffer.wrap(pg.getData());
-            fc.position(offset);
-            fc.write(buf);
+            write(pg);
             fc.force(false);
         } catch (IOException e) {
             Panic.panic(e);
@@ -144,6 +259,13 @@ public class PageCacheImpl extends AbstractCache<Page> implements PageCache {
         }
     }
 
+    // 调用方持有 fileLock
+    private void write(Page pg) throws IOException {
+        ByteBuffer buf = ByteBuffer.wrap(pg.getData());
+        fc.position(pageOffset(pg.getPageNumber()));
+        fc.write(buf);
+    }
+
     public void truncateByBgno(int maxPgno) {
         long size = pageOffset(maxPgno + 1);
         try {
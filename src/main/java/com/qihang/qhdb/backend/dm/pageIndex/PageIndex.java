@@ -19,12 +19,17 @@ public class PageIndex {
     // 维护一个页面信息的 List数组，实现页面索引
     private List<PageInfo>[] lists;
 
+    // 清理后留下的空洞，按大小用同样的区间划分
+    private List<List<PageInfo>> holes;
+
     @SuppressWarnings("unchecked")
     public PageIndex() {
         lock = new ReentrantLock();
         lists = new List[INTERVALS_NO + 1];
+        holes = new ArrayList<>(INTERVALS_NO + 1);
         for (int i = 0; i < INTERVALS_NO + 1; i++) {
             lists[i] = new ArrayList<>();
+            holes.add(new ArrayList<>());
         }
     }
 
@@ -75,4 +80,47 @@ public class PageIndex {
             lock.unlock();
         }
     }
+
+    /**
+     * 加入一个空洞
+     * 空洞不影响页尾的空闲空间，同一个页面的空洞和页尾可以同时写入
+     *
+     * @param pgno   页号
+     * @param offset 页内偏移
+     * @param size   空洞大小
+     */
+    public void addHole(int pgno, short offset, int size) {
+        lock.lock();
+        try {
+            holes.get(size / THRESHOLD).add(new PageInfo(pgno, offset, size));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 取出一个能放下 spaceSize 的空洞
+     * 空洞要么正好放下，要么剩余的部分还能放下一个空的 DataItem 头，用来标记剩余的空洞
+     *
+     * @param spaceSize
+     * @param minRest   剩余部分的最小大小
+     * @return
+     */
+    public PageInfo selectHole(int spaceSize, int minRest) {
+        lock.lock();
+        try {
+            for (int number = spaceSize / THRESHOLD; number <= INTERVALS_NO; number++) {
+                List<PageInfo> l = holes.get(number);
+                for (int i = 0; i < l.size(); i++) {
+                    int rest = l.get(i).freeSpace - spaceSize;
+                    if (rest == 0 || rest >= minRest) {
+                        return l.remove(i);
+                    }
+                }
+            }
+            return null;
+        } finally {
+            lock.unlock();
+        }
+    }
 }
@@ -7,10 +7,17 @@ public class PageInfo {
 
     public int pgno; // 页号
     public int freeSpace; // 空闲空间
+    public short offset; // 空洞在页内的偏移，页尾空闲空间为 0
 
     public PageInfo(int pgno, int freeSpace) {
         this.pgno = pgno;
         this.freeSpace = freeSpace;
     }
 
+    public PageInfo(int pgno, short offset, int freeSpace) {
+        this.pgno = pgno;
+        this.offset = offset;
+        this.freeSpace = freeSpace;
+    }
+
 }
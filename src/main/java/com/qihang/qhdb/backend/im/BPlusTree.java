@@ -10,7 +10,6 @@ import com.qihang.qhdb.backend.im.Node.InsertAndSplitRes;
 import com.qihang.qhdb.backend.im.Node.LeafSearchRangeRes;
 
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.List;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
@@ -23,7 +22,8 @@ import java.util.concurrent.locks.ReentrantLock;
  *
  * B+ 树聚簇索引
  *
- * IM 对上层模块主要提供两种能力：插入索引 和 搜索节点。
+ * IM 对上层模块主要提供三种能力：插入索引、删除索引 和 搜索节点。
+ * 删除只从叶子节点中移除，不合并节点。
  *
  * MYDB只支持基于索引查找数据，不支持全表扫描
  *
@@ -63,7 +63,7 @@ public class BPlusTree {
         bootLock.lock();
         try {
             SubArray sa = bootDataItem.data();
-            return Parser.parseLong(Arrays.copyOfRange(sa.raw, sa.start, sa.start + 8));
+            return Parser.getLong(sa.raw, sa.start);
         } finally {
             bootLock.unlock();
         }
@@ -76,7 +76,7 @@ public class BPlusTree {
             long newRootUid = dm.insert(TransactionManagerImpl.SUPER_XID, rootRaw);
             bootDataItem.before();
             SubArray diRaw = bootDataItem.data();
-            System.arraycopy(Parser.long2Byte(newRootUid), 0, diRaw.raw, diRaw.start, 8);
+            Parser.putLong(diRaw.raw, diRaw.start, newRootUid);
             bootDataItem.after(TransactionManagerImpl.SUPER_XID);
         } finally {
             bootLock.unlock();
@@ -99,18 +99,19 @@ public class BPlusTree {
         if (isLeaf) {
             return nodeUid;
         } else {
-            long next = searchNext(nodeUid, key);
+            long next = searchNext(nodeUid, key, true);
             return searchLeaf(next, key);
         }
     }
 
     /*
      * serchNext()方法是在索引树上寻找下一个孩子结点，无限循环直到走到叶子结点为止；这个结点没有符合要求的就去下一个兄弟结点找
+     * 查找时 leftmost 为 true，从最左边可能包含 key 的叶子开始；插入时为 false
      */
-    private long searchNext(long nodeUid, long key) throws Exception {
+    private long searchNext(long nodeUid, long key, boolean leftmost) throws Exception {
         while (true) {
             Node node = Node.loadNode(this, nodeUid);
-            SearchNextRes res = node.searchNext(key);
+            SearchNextRes res = node.searchNext(key, leftmost);
             node.release(); // 释放缓存
             if (res.uid != 0) return res.uid;
             nodeUid = res.siblingUid;
@@ -139,6 +140,43 @@ public class BPlusTree {
         return uids;
     }
 
+    public static class ScanRes {
+        public List<Long> uids;
+        public long nextKey;    // 下一次扫描的起点
+        public boolean done;    // 已经扫描到最后一个叶子节点
+    }
+
+    /**
+     * 从 leftKey 开始按 key 顺序扫描，收集到至少 limit 个 UID 后在叶子节点边界停止
+     * 下一次从本次最后一个 key 开始，相同 key 的索引项可能再返回一次；
+     * 收集到的 key 都等于 leftKey 时继续扫描，保证每次都有进展
+     *
+     * @param leftKey
+     * @param limit
+     * @return
+     * @throws Exception
+     */
+    public ScanRes scan(long leftKey, int limit) throws Exception {
+        long leafUid = searchLeaf(rootUid(), leftKey);
+        ScanRes res = new ScanRes();
+        res.uids = new ArrayList<>();
+        while (true) {
+            Node leaf = Node.loadNode(this, leafUid);
+            LeafSearchRangeRes lr = leaf.leafSearchRange(leftKey, Long.MAX_VALUE);
+            leaf.release();
+            res.uids.addAll(lr.uids);
+            if (lr.siblingUid == 0) {
+                res.done = true;
+                return res;
+            }
+            if (res.uids.size() >= limit && !lr.uids.isEmpty() && lr.lastKey > leftKey) {
+                res.nextKey = lr.lastKey;
+                return res;
+            }
+            leafUid = lr.siblingUid;
+        }
+    }
+
     public void insert(long key, long uid) throws Exception {
         long rootUid = rootUid();
         InsertRes res = insert(rootUid, uid, key);
@@ -148,6 +186,22 @@ public class BPlusTree {
         }
     }
 
+    /**
+     * 删除索引项 (key, uid)，相同的 key 可能跨越多个叶子节点，沿兄弟链查找
+     *
+     * @param key
+     * @param uid
+     * @throws Exception
+     */
+    public void delete(long key, long uid) throws Exception {
+        long leafUid = searchLeaf(rootUid(), key);
+        while (leafUid != 0) {
+            Node leaf = Node.loadNode(this, leafUid);
+            leafUid = leaf.leafRemove(uid, key);
+            leaf.release();
+        }
+    }
+
     class InsertRes {
         long newNode, newKey;
     }
@@ -166,7 +220,7 @@ public class BPlusTree {
         if (isLeaf) {
             res = insertAndSplit(nodeUid, uid, key);
         } else {
-            long next = searchNext(nodeUid, key);
+            long next = searchNext(nodeUid, key, false);
             InsertRes ir = insert(next, uid, key);
             if (ir.newNode != 0) {
                 res = insertAndSplit(nodeUid, ir.newNode, ir.newKey);
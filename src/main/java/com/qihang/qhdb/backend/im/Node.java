@@ -6,7 +6,6 @@ import com.qihang.qhdb.backend.tm.TransactionManagerImpl;
 import com.qihang.qhdb.backend.utils.Parser;
 
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.List;
 
 /**
@@ -17,6 +16,11 @@ import java.util.List;
  *
  * 二叉树
  *
+ * 节点内的 key 有序，查找位置使用二分查找，key 直接从节点数据中读取，不拷贝。
+ * 相同的 key 可能跨越多个节点，分裂出的分隔 key 可能与左边节点的最后一个 key 相等，
+ * 所以查找时要进入第一个分隔 key 不小于目标的孩子，从最左边可能包含它的叶子开始沿兄弟链向右查找；
+ * 插入仍进入第一个分隔 key 大于目标的孩子。
+ *
  */
 public class Node {
     // 节点头部信息偏移量
@@ -51,22 +55,22 @@ public class Node {
 
     // 设置Node中的key个数
     static void setRawNoKeys(SubArray raw, int noKeys) {
-        System.arraycopy(Parser.short2Byte((short) noKeys), 0, raw.raw, raw.start + NO_KEYS_OFFSET, 2);
+        Parser.putShort(raw.raw, raw.start + NO_KEYS_OFFSET, (short) noKeys);
     }
 
-    // 获取node中的key个数
+    // 获取Node中的key个数
     static int getRawNoKeys(SubArray raw) {
-        return (int) Parser.parseShort(Arrays.copyOfRange(raw.raw, raw.start + NO_KEYS_OFFSET, raw.start + NO_KEYS_OFFSET + 2));
+        return Parser.getShort(raw.raw, raw.start + NO_KEYS_OFFSET);
     }
 
     // 设置Node的兄弟节点
     static void setRawSibling(SubArray raw, long sibling) {
-        System.arraycopy(Parser.long2Byte(sibling), 0, raw.raw, raw.start + SIBLING_OFFSET, 8);
+        Parser.putLong(raw.raw, raw.start + SIBLING_OFFSET, sibling);
     }
 
     // 获取Node的兄弟节点
     static long getRawSibling(SubArray raw) {
-        return Parser.parseLong(Arrays.copyOfRange(raw.raw, raw.start + SIBLING_OFFSET, raw.start + SIBLING_OFFSET + 8));
+        return Parser.getLong(raw.raw, raw.start + SIBLING_OFFSET);
     }
 
     /**
@@ -78,25 +82,53 @@ public class Node {
      */
     static void setRawKthSon(SubArray raw, long uid, int kth) {
         int offset = raw.start + NODE_HEADER_SIZE + kth * (8 * 2);
-        System.arraycopy(Parser.long2Byte(uid), 0, raw.raw, offset, 8);
+        Parser.putLong(raw.raw, offset, uid);
     }
 
     // 获取Node的孩子节点的son值
     static long getRawKthSon(SubArray raw, int kth) {
         int offset = raw.start + NODE_HEADER_SIZE + kth * (8 * 2);
-        return Parser.parseLong(Arrays.copyOfRange(raw.raw, offset, offset + 8));
+        return Parser.getLong(raw.raw, offset);
     }
 
     // 设置Node的孩子节点key值
     static void setRawKthKey(SubArray raw, long key, int kth) {
         int offset = raw.start + NODE_HEADER_SIZE + kth * (8 * 2) + 8; // 获取key值
-        System.arraycopy(Parser.long2Byte(key), 0, raw.raw, offset, 8);
+        Parser.putLong(raw.raw, offset, key);
     }
 
     // 获取Node的第kth个孩子节点key值
     static long getRawKthKey(SubArray raw, int kth) {
         int offset = raw.start + NODE_HEADER_SIZE + kth * (8 * 2) + 8;
-        return Parser.parseLong(Arrays.copyOfRange(raw.raw, offset, offset + 8));
+        return Parser.getLong(raw.raw, offset);
+    }
+
+    // 二分查找第一个不小于 key 的位置，不存在时返回 noKeys
+    static int lowerBound(SubArray raw, int noKeys, long key) {
+        int lo = 0, hi = noKeys;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (getRawKthKey(raw, mid) < key) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    // 二分查找第一个大于 key 的位置，不存在时返回 noKeys
+    static int upperBound(SubArray raw, int noKeys, long key) {
+        int lo = 0, hi = noKeys;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (getRawKthKey(raw, mid) <= key) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
     }
 
     static void copyRawFromKth(SubArray from, SubArray to, int kth) {
@@ -112,6 +144,13 @@ public class Node {
         }
     }
 
+    // 删除第kth个孩子，之后的孩子前移
+    static void shiftRawKthLeft(SubArray raw, int kth) {
+        int begin = raw.start + NODE_HEADER_SIZE + kth * (8 * 2);
+        int end = raw.start + NODE_SIZE;
+        System.arraycopy(raw.raw, begin + (8 * 2), raw.raw, begin, end - begin - (8 * 2));
+    }
+
     /**
      * 生成一个非空根节点数据
      * 该根节点的初始两个子节点为 left 和 right
@@ -184,19 +223,19 @@ public class Node {
 
     /*
      * serchNext()方法是在索引树上寻找下一个孩子结点，无限循环直到走到叶子结点为止；这个结点没有符合要求的就去下一个兄弟结点找
+     *
+     * @param leftmost 查找时为 true，进入第一个分隔 key 不小于 key 的孩子；插入时为 false，进入第一个大于 key 的孩子
      */
-    public SearchNextRes searchNext(long key) {
+    public SearchNextRes searchNext(long key, boolean leftmost) {
         dataItem.rLock();
         try {
             SearchNextRes res = new SearchNextRes();
             int noKeys = getRawNoKeys(raw);
-            for (int i = 0; i < noKeys; i++) {
-                long ik = getRawKthKey(raw, i);
-                if (key < ik) {  // 根据排序树的规则，小于的就往左下走就行了
-                    res.uid = getRawKthSon(raw, i);
-                    res.siblingUid = 0;
-                    return res;
-                }
+            int kth = leftmost ? lowerBound(raw, noKeys, key) : upperBound(raw, noKeys, key);
+            if (kth < noKeys) {
+                res.uid = getRawKthSon(raw, kth);
+                res.siblingUid = 0;
+                return res;
             }
             res.uid = 0;
             res.siblingUid = getRawSibling(raw);
@@ -210,6 +249,7 @@ public class Node {
     class LeafSearchRangeRes {
         List<Long> uids;
         long siblingUid;
+        long lastKey;   // uids 中最后一项的 key，uids 为空时无意义
     }
 
     /**
@@ -224,37 +264,80 @@ public class Node {
         dataItem.rLock();
         try {
             int noKeys = getRawNoKeys(raw);
-            int kth = 0;
-            while (kth < noKeys) {
-                long ik = getRawKthKey(raw, kth);
-                if (ik >= leftKey) {
-                    break;
-                }
-                kth++;
-            }
-            List<Long> uids = new ArrayList<>();
-            while (kth < noKeys) {
-                long ik = getRawKthKey(raw, kth);
-                if (ik <= rightKey) {
-                    uids.add(getRawKthSon(raw, kth));
-                    kth++;
-                } else {
-                    break;
-                }
+            int kth = lowerBound(raw, noKeys, leftKey);
+            int end = Math.max(kth, upperBound(raw, noKeys, rightKey));
+            List<Long> uids = new ArrayList<>(end - kth);
+            for (; kth < end; kth++) {
+                uids.add(getRawKthSon(raw, kth));
             }
             long siblingUid = 0;
-            if (kth == noKeys) {
+            if (end == noKeys) {
                 siblingUid = getRawSibling(raw);
             }
             LeafSearchRangeRes res = new LeafSearchRangeRes();
             res.uids = uids;
             res.siblingUid = siblingUid;
+            if (!uids.isEmpty()) {
+                res.lastKey = getRawKthKey(raw, end - 1);
+            }
             return res;
         } finally {
             dataItem.rUnLock();
         }
     }
 
+    /**
+     * 从叶子节点中删除 (key, uid)
+     * 删除后不合并节点，节点可能变空，但仍在兄弟链上
+     *
+     * @param uid
+     * @param key
+     * @return 当前节点的 key 都不大于 key 且没有找到时返回兄弟节点，需要继续查找；否则返回 0
+     */
+    public long leafRemove(long uid, long key) {
+        // 先在读锁下查找，没有找到时不加写锁，也不拷贝节点
+        dataItem.rLock();
+        try {
+            int noKeys = getRawNoKeys(raw);
+            int kth = lowerBound(raw, noKeys, key);
+            while (kth < noKeys && getRawKthKey(raw, kth) == key && getRawKthSon(raw, kth) != uid) {
+                kth++;
+            }
+            if (kth == noKeys) {
+                return getRawSibling(raw);
+            }
+            if (getRawKthKey(raw, kth) != key) {
+                return 0;
+            }
+        } finally {
+            dataItem.rUnLock();
+        }
+
+        // 找到了，加写锁后重新查找，期间节点可能已经分裂
+        dataItem.before();
+        boolean removed = false;
+        try {
+            int noKeys = getRawNoKeys(raw);
+            int kth = lowerBound(raw, noKeys, key);
+            while (kth < noKeys && getRawKthKey(raw, kth) == key) {
+                if (getRawKthSon(raw, kth) == uid) {
+                    shiftRawKthLeft(raw, kth);
+                    setRawNoKeys(raw, noKeys - 1);
+                    removed = true;
+                    return 0;
+                }
+                kth++;
+            }
+            return kth == noKeys ? getRawSibling(raw) : 0;
+        } finally {
+            if (removed) {
+                dataItem.after(TransactionManagerImpl.SUPER_XID);
+            } else {
+                dataItem.unBefore();
+            }
+        }
+    }
+
     class InsertAndSplitRes {
         long siblingUid, newSon, newKey;
     }
@@ -295,15 +378,7 @@ public class Node {
 
     private boolean insert(long uid, long key) {
         int noKeys = getRawNoKeys(raw);
-        int kth = 0;
-        while (kth < noKeys) {
-            long ik = getRawKthKey(raw, kth);
-            if (ik < key) {
-                kth++;
-            } else {
-                break;
-            }
-        }
+        int kth = lowerBound(raw, noKeys, key);
         if (kth == noKeys && getRawSibling(raw) != 0) return false;
 
         if (getRawIfLeaf(raw)) {
@@ -397,12 +397,29 @@ public class Parser {
         return new Commit();
     }
 
+    // begin [read only|optimistic] [isolation level read committed|repeatable read] [commit sync|async]
     private static Begin parseBegin(Tokenizer tokenizer) throws Exception {
-        String isolation = tokenizer.peek();
         Begin begin = new Begin();
+        // 可选的 read only，开启只读事务
+        if("read".equals(tokenizer.peek())) {
+            tokenizer.pop();
+            if(!"only".equals(tokenizer.peek())) {
+                throw Error.InvalidCommandException;
+            }
+            tokenizer.pop();
+            begin.isReadOnly = true;
+        } else if("optimistic".equals(tokenizer.peek())) {
+            // 乐观事务，不加行锁，提交时验证
+            tokenizer.pop();
+            begin.isOptimistic = true;
+        }
+        String isolation = tokenizer.peek();
         if("".equals(isolation)) {
             return begin;
         }
+        if("commit".equals(isolation)) {
+            return parseCommitMode(tokenizer, begin);
+        }
         if(!"isolation".equals(isolation)) {
             throw Error.InvalidCommandException;
         }
@@ -420,10 +437,7 @@ public class Parser {
             String tmp2 = tokenizer.peek();
             if("committed".equals(tmp2)) {
                 tokenizer.pop();
-                if(!"".equals(tokenizer.peek())) {
-                    throw Error.InvalidCommandException;
-                }
-                return begin;
+                return parseCommitMode(tokenizer, begin);
             } else {
                 throw Error.InvalidCommandException;
             }
@@ -433,10 +447,7 @@ public class Parser {
             if("read".equals(tmp2)) {
                 begin.isRepeatableRead = true;
                 tokenizer.pop();
-                if(!"".equals(tokenizer.peek())) {
-                    throw Error.InvalidCommandException;
-                }
-                return begin;
+                return parseCommitMode(tokenizer, begin);
             } else {
                 throw Error.InvalidCommandException;
             }
@@ -445,6 +456,30 @@ public class Parser {
         }
     }
 
+    // 解析可选的提交方式，sync 为默认的同步提交，async 提交时不等待日志落盘
+    private static Begin parseCommitMode(Tokenizer tokenizer, Begin begin) throws Exception {
+        String tmp = tokenizer.peek();
+        if("".equals(tmp)) {
+            return begin;
+        }
+        if(!"commit".equals(tmp)) {
+            throw Error.InvalidCommandException;
+        }
+        tokenizer.pop();
+
+        String mode = tokenizer.peek();
+        if("async".equals(mode)) {
+            begin.isAsyncCommit = true;
+        } else if(!"sync".equals(mode)) {
+            throw Error.InvalidCommandException;
+        }
+        tokenizer.pop();
+        if(!"".equals(tokenizer.peek())) {
+            throw Error.InvalidCommandException;
+        }
+        return begin;
+    }
+
     private static boolean isName(String name) {
         return !(name.length() == 1 && !Tokenizer.isAlphaBeta(name.getBytes()[0]));
     }
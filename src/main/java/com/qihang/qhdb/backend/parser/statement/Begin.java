@@ -2,4 +2,7 @@ package com.qihang.qhdb.backend.parser.statement;
 
 public class Begin {
     public boolean isRepeatableRead;
+    public boolean isAsyncCommit;
+    public boolean isReadOnly;
+    public boolean isOptimistic;
 }
\ No newline at end of file
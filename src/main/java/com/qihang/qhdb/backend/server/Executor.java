@@ -66,7 +66,10 @@ public class Executor {
         Exception e = null;
         if(xid == 0) {
             tmpTransaction = true;
-            BeginRes r = tbm.begin(new Begin());
+            Begin begin = new Begin();
+            // 自动提交的查询不修改数据，使用只读事务，不分配 XID
+            begin.isReadOnly = Select.class.isInstance(stat) || Show.class.isInstance(stat);
+            BeginRes r = tbm.begin(begin);
             xid = r.xid;
         }
         try {
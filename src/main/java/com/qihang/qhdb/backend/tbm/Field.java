@@ -119,11 +119,21 @@ public class Field {
         bt.insert(uKey, uid);
     }
 
+    public void remove(Object key, long uid) throws Exception {
+        long uKey = value2Uid(key);
+        bt.delete(uKey, uid);
+    }
+
     // 通过B+树索引进行搜索字段
     public List<Long> search(long left, long right) throws Exception {
         return bt.searchRange(left, right);
     }
 
+    // 从 left 开始分批扫描索引
+    public BPlusTree.ScanRes scan(long left, int limit) throws Exception {
+        return bt.scan(left, limit);
+    }
+
     public Object string2Value(String str) {
         switch (fieldType) {
             case "int32":
@@ -1,12 +1,14 @@
 package com.qihang.qhdb.backend.tbm;
 
 import com.google.common.primitives.Bytes;
+import com.qihang.qhdb.backend.im.BPlusTree;
 import com.qihang.qhdb.backend.parser.statement.*;
 import com.qihang.qhdb.backend.tbm.Field.ParseValueRes;
 import com.qihang.qhdb.backend.tm.TransactionManagerImpl;
 import com.qihang.qhdb.backend.utils.Panic;
 import com.qihang.qhdb.backend.utils.ParseStringRes;
 import com.qihang.qhdb.backend.utils.Parser;
+import com.qihang.qhdb.backend.vm.VersionManager;
 import com.qihang.qhdb.common.Error;
 
 import java.util.*;
@@ -26,6 +28,8 @@ public class Table {
     byte status;
     long nextUid;
     List<Field> fields = new ArrayList<>();
+    long vacuumKey = Long.MIN_VALUE;    // 下一批清理从这个 key 开始，只由维护线程访问
+    long freezeKey = Long.MIN_VALUE;    // 下一批冻结从这个 key 开始，只由维护线程访问
 
     // 读取一张表
     public static Table loadTable(TableManager tbm, long uid) {
@@ -100,13 +104,7 @@ public class Table {
 
     public int delete(long xid, Delete delete) throws Exception {
         List<Long> uids = parseWhere(delete.where);
-        int count = 0;
-        for (Long uid : uids) {
-            if(((TableManagerImpl)tbm).vm.delete(xid, uid)) {
-                count ++;
-            }
-        }
-        return count;
+        return ((TableManagerImpl)tbm).vm.deleteBatch(xid, uids).size();
     }
 
     public int update(long xid, Update update) throws Exception {
@@ -122,12 +120,17 @@ public class Table {
             throw Error.FieldNotFoundException;
         }
         Object value = fd.string2Value(update.value);
-        int count = 0;
+        // 先读出所有可见的记录，批量删除后再为删除成功的记录插入新版本
+        Map<Long, byte[]> raws = new HashMap<>();
         for (Long uid : uids) {
             byte[] raw = ((TableManagerImpl)tbm).vm.read(xid, uid);
             if(raw == null) continue;
-
-            ((TableManagerImpl)tbm).vm.delete(xid, uid);
+            raws.put(uid, raw);
+        }
+        List<Long> deleted = ((TableManagerImpl)tbm).vm.deleteBatch(xid, new ArrayList<>(raws.keySet()));
+        int count = 0;
+        for (Long uid : deleted) {
+            byte[] raw = raws.get(uid);
 
             Map<String, Object> entry = parseEntry(raw);
             entry.put(fd.fieldName, value);
@@ -157,6 +160,89 @@ public class Table {
         return sb.toString();
     }
 
+    /**
+     * 冻结表结构和表中的记录
+     * 通过第一个索引从 freezeKey 开始分批取出记录，包括已删除和已回滚的记录，扫描到末尾后 freezeKey 回到起点
+     *
+     * @param horizon
+     * @param limit 本批最多扫描的索引项数，在叶子节点边界停止，可能略多
+     * @return 扫描的索引项数
+     * @throws Exception
+     */
+    int freeze(long horizon, int limit) throws Exception {
+        VersionManager vm = ((TableManagerImpl)tbm).vm;
+        Field fd = null;
+        for (Field field : fields) {
+            if(field.isIndexed()) {
+                fd = field;
+                break;
+            }
+        }
+        // 表结构在第一批中冻结
+        if(freezeKey == Long.MIN_VALUE) {
+            vm.freeze(uid, horizon);
+            for (Field field : fields) {
+                vm.freeze(field.uid, horizon);
+            }
+        }
+        if(fd == null) {
+            return 0;
+        }
+        BPlusTree.ScanRes res = fd.scan(freezeKey, limit);
+        freezeKey = res.done ? Long.MIN_VALUE : res.nextKey;
+        for (Long uid : res.uids) {
+            vm.freeze(uid, horizon);
+        }
+        return res.uids.size();
+    }
+
+    // 上一批冻结是否已经扫描完整张表
+    boolean freezeFinished() {
+        return freezeKey == Long.MIN_VALUE;
+    }
+
+    /**
+     * 清理表中对所有事务都不可见的记录：先从所有索引中删除，再清理记录本身
+     * 通过第一个索引从 vacuumKey 开始分批取出记录，扫描到末尾后 vacuumKey 回到起点
+     *
+     * @param horizon
+     * @param limit 本批最多扫描的索引项数，在叶子节点边界停止，可能略多
+     * @return 扫描的索引项数
+     * @throws Exception
+     */
+    int vacuum(long horizon, int limit) throws Exception {
+        VersionManager vm = ((TableManagerImpl)tbm).vm;
+        Field fd = null;
+        for (Field field : fields) {
+            if(field.isIndexed()) {
+                fd = field;
+                break;
+            }
+        }
+        if(fd == null) {
+            return 0;
+        }
+        BPlusTree.ScanRes res = fd.scan(vacuumKey, limit);
+        vacuumKey = res.done ? Long.MIN_VALUE : res.nextKey;
+        for (Long uid : res.uids) {
+            byte[] raw = vm.deadData(uid, horizon);
+            if(raw == null) continue;
+            Map<String, Object> entry = parseEntry(raw);
+            for (Field field : fields) {
+                if(field.isIndexed()) {
+                    field.remove(entry.get(field.fieldName), uid);
+                }
+            }
+            vm.vacuum(uid);
+        }
+        return res.uids.size();
+    }
+
+    // 上一批清理是否已经扫描完整张表
+    boolean vacuumFinished() {
+        return vacuumKey == Long.MIN_VALUE;
+    }
+
     public void insert(long xid, Insert insert) throws Exception {
         Map<String, Object> entry = string2Entry(insert.values);
         byte[] raw = entry2Raw(entry);
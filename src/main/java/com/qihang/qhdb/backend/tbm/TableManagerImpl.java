@@ -2,6 +2,7 @@ package com.qihang.qhdb.backend.tbm;
 
 import com.qihang.qhdb.backend.dm.DataManager;
 import com.qihang.qhdb.backend.parser.statement.*;
+import com.qihang.qhdb.backend.utils.Panic;
 import com.qihang.qhdb.backend.utils.Parser;
 import com.qihang.qhdb.backend.vm.VersionManager;
 import com.qihang.qhdb.common.Error;
@@ -13,13 +14,29 @@ import java.util.Map;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
+/**
+ * 后台维护线程每隔 VACUUM_INTERVAL 计算一次冻结水位：
+ *      清理表中对所有事务都不可见的记录，删除它们的索引项，空间交给 DM 复用；
+ *      每轮最多扫描 VACUUM_BATCH 个索引项，从上一轮停下的表和 key 继续，依次扫描完所有表为一个周期；
+ *      水位推进超过 FREEZE_MIN_XIDS 时，以当时的水位开始一轮冻结，同样每轮最多扫描 VACUUM_BATCH 个索引项，
+ *      所有表的表结构和记录都冻结完之后才推进 TM 的冻结水位，XID 文件和状态表的大小因此有界。
+ *      水位之前的事务在冻结开始时都已结束，之后修改记录的事务都不小于水位，分批冻结不会漏掉记录。
+ * 清理和冻结在同一个线程中进行，冻结不会改写正在被清理的记录
+ */
 public class TableManagerImpl implements TableManager {
+    private static final long VACUUM_INTERVAL = 10_000;
+    private static final long FREEZE_MIN_XIDS = 1 << 16;
+    private static final int VACUUM_BATCH = 1 << 14;
+
     VersionManager vm;
     DataManager dm;
     private Booter booter;
     private Map<String, Table> tableCache;          // 表的缓存，key：表名；value：表
     private Map<Long, List<Table>> xidTableCache;   // 记录每个事务正在操作的表
     private Lock lock;
+    private List<Table> vacuumTables;               // 本周期还没有清理完的表，只由维护线程访问
+    private List<Table> freezeTables;               // 本轮还没有冻结完的表，null 表示没有进行中的冻结，只由维护线程访问
+    private long freezing;                          // 本轮冻结的水位
     
     TableManagerImpl(VersionManager vm, DataManager dm, Booter booter) {
         this.vm = vm;
@@ -28,7 +45,87 @@ public class TableManagerImpl implements TableManager {
         this.tableCache = new HashMap<>();
         this.xidTableCache = new HashMap<>();
         lock = new ReentrantLock();
+        vacuumTables = new ArrayList<>();
         loadTables();
+        Thread maintainer = new Thread(this::maintainLoop, "vacuum");
+        maintainer.setDaemon(true);
+        maintainer.start();
+    }
+
+    private void maintainLoop() {
+        long frozen = 0;
+        while(true) {
+            try {
+                Thread.sleep(VACUUM_INTERVAL);
+            } catch (InterruptedException e) {
+                Panic.panic(e);
+            }
+            long horizon = vm.freezeHorizon();
+            try {
+                vacuum(horizon);
+                if(freezeTables == null && horizon - frozen >= FREEZE_MIN_XIDS) {
+                    startFreeze(horizon);
+                }
+                if(freezeTables != null && freeze()) {
+                    frozen = freezing;
+                }
+            } catch (Exception e) {
+                Panic.panic(e);
+            }
+        }
+    }
+
+    /**
+     * 清理一批记录，周期开始时取出所有表，冻结水位之前开启的事务都已结束，它们创建的表都已在 tableCache 中
+     * 周期中途创建的表在下一个周期清理
+     */
+    void vacuum(long horizon) throws Exception {
+        if(vacuumTables.isEmpty()) {
+            lock.lock();
+            vacuumTables = new ArrayList<>(tableCache.values());
+            lock.unlock();
+        }
+        int budget = VACUUM_BATCH;
+        while(budget > 0 && !vacuumTables.isEmpty()) {
+            Table tb = vacuumTables.get(0);
+            budget -= tb.vacuum(horizon, budget);
+            if(tb.vacuumFinished()) {
+                vacuumTables.remove(0);
+            }
+        }
+        vm.endVacuum(horizon, vacuumTables.isEmpty());
+    }
+
+    /**
+     * 开始一轮冻结，冻结水位之前开启的事务都已结束，它们创建的表都已在 tableCache 中
+     */
+    void startFreeze(long horizon) {
+        lock.lock();
+        freezeTables = new ArrayList<>(tableCache.values());
+        lock.unlock();
+        freezing = horizon;
+    }
+
+    /**
+     * 冻结一批记录，所有表都冻结完后推进冻结水位
+     *
+     * @return 本轮冻结是否已经完成
+     */
+    boolean freeze() throws Exception {
+        int budget = VACUUM_BATCH;
+        while(budget > 0 && !freezeTables.isEmpty()) {
+            Table tb = freezeTables.get(0);
+            budget -= tb.freeze(freezing, budget);
+            if(tb.freezeFinished()) {
+                freezeTables.remove(0);
+            }
+        }
+        if(!freezeTables.isEmpty()) {
+            return false;
+        }
+        vm.endFreeze(freezing);
+        freezeTables = null;
+        return true;
     }
 
     private void loadTables() {
@@ -54,7 +151,8 @@ public class TableManagerImpl implements TableManager {
     public BeginRes begin(Begin begin) {
         BeginRes res = new BeginRes();
         int level = begin.isRepeatableRead?1:0; // 隔离等级
-        res.xid = vm.begin(level);              // 通过VM开始一个新事务，返回事务ID
+        // 通过VM开始一个新事务，返回事务ID
+        res.xid = begin.isReadOnly ? vm.beginReadOnly(level) : vm.begin(level, begin.isAsyncCommit, begin.isOptimistic);
         res.result = "begin".getBytes();        // 记录执行语句
         return res;
     }
@@ -98,6 +196,7 @@ public class TableManagerImpl implements TableManager {
                 throw Error.DuplicatedTableException;
             }
             Table table = Table.createTable(this, firstTableUid(), xid, create);
+            dm.flushLog();  // booter 文件直接落盘，指向的表结构日志需要先落盘
             updateFirstTableUid(table.uid);
             tableCache.put(create.tableName, table);
             if(!xidTableCache.containsKey(xid)) {
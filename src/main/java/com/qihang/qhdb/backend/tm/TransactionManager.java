@@ -15,6 +15,9 @@ import java.nio.channels.FileChannel;
  * @Date: 2024/03/10
  * @Project: qhdb
  * @Description: TM 通过维护 XID 文件来维护事务的状态，并提供接口供其他模块来查询某个事务的状态。
+ *
+ * 提交和回滚只写入操作系统缓存，不单独落盘：持久性由日志中的提交/回滚记录保证，
+ * 崩溃后由恢复流程根据日志修正 XID 文件。
  */
 public interface TransactionManager {
 
@@ -25,14 +28,28 @@ public interface TransactionManager {
 
     void commit(long xid); // 提交一个事务
 
+    void commitAsync(long xid); // 异步提交：提交记录落盘前就对其他事务可见，不写 XID 文件
+
+    void persistCommit(long xid); // 异步提交的提交记录落盘后，把状态写入 XID 文件
+
     void abort(long xid);  // 取消一个事务
 
+    void advanceXID(long xid); // 恢复时推进 XID 计数，保证 xid 及之前的事务号不再分配
+
+    void freeze(long xid); // 推进冻结水位：xid 之前的事务都已冻结，视为已提交，不再查询状态
+
     boolean isActive(long xid); // 查询一个事务的状态是否是正在进行
 
     boolean isCommitted(long xid); // 查询一个事务是否已提交
 
     boolean isAbort(long xid); // 查询一个事务是否已取消
 
+    boolean isCommitPending(long xid); // 是否异步提交、提交记录还没有落盘
+
+    long getCSN(long xid); // 已提交事务的提交序号，重启前提交和已冻结的事务为 0
+
+    long csn(); // 当前已发布的最大提交序号，作为快照：提交序号不大于它的事务对快照可见
+
     void close(); // 关闭TM
 
     public static TransactionManagerImpl create(String path) {
@@ -76,6 +93,8 @@ public interface TransactionManager {
         if (!f.canRead() || !f.canWrite()) {
             Panic.panic(Error.FileCannotRWException);
         }
+        // 截掉冻结水位之前的整块状态
+        TransactionManagerImpl.compact(f);
 
         FileChannel fc = null;
         RandomAccessFile raf = null;
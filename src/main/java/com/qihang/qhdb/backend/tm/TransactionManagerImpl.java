@@ -4,10 +4,16 @@ import com.qihang.qhdb.common.Error;
 import com.qihang.qhdb.backend.utils.Panic;
 import com.qihang.qhdb.backend.utils.Parser;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -16,37 +22,78 @@ import java.util.concurrent.locks.ReentrantLock;
  * @Date: 2024/03/10
  * @Project: qhdb
  * @Description: TM实现类
+ *
+ * 事务状态在内存中保留一份（XidStatusTable），状态查询不再读取 XID 文件；
+ * 打开时从 XID 文件整体加载，更新时同时写入文件和内存。
+ *
+ * XID 文件按块映射到内存，状态直接写入映射区域；文件每次扩展一整块，扩展时落盘。
+ * XID 由 AtomicLong 分配，开启事务不加锁、不落盘，文件头的计数只在扩展和关闭时写入；
+ * 崩溃后计数可能落后，由恢复流程根据日志中出现过的 XID 推进（advanceXID）。
+ *
+ * 冻结：FrozenXID 之前的事务都已结束，引用它们的记录已经被改写为 FROZEN_XID（或标记为已删除），
+ * 这些事务一律视为已提交，不再查询也不再修改状态，内存中的状态块随之释放；
+ * 打开文件时把冻结水位之前的整块状态从文件头部截掉，截掉的事务数记为 DroppedXIDs。
+ *
+ * XID 文件头：[XIDCounter 8] [FrozenXID 8] [DroppedXIDs 8]
+ *
+ * 提交序号（CSN）：每次提交分配一个递增的 CSN，只保存在内存中。先写 CSN 再写状态，
+ * 然后按 CSN 顺序发布（publishedCSN），快照只取已发布的 CSN，
+ * 保证快照可见的提交在快照之前都已经完整写入。
+ *
+ * 异步提交（commitAsync）在提交记录落盘前就对其他事务可见，内存中的状态记为 FIELD_TRAN_COMMIT_PENDING，
+ * 不写 XID 文件；提交记录落盘后由 persistCommit 改为已提交并写入文件。
  */
 public class TransactionManagerImpl implements TransactionManager {
     // XID文件头长度
-    static final int LEN_XID_HEADER_LENGTH = 8;
+    static final int LEN_XID_HEADER_LENGTH = 24;
+    private static final int OF_COUNTER = 0;
+    private static final int OF_FROZEN = OF_COUNTER + 8;
+    private static final int OF_DROPPED = OF_FROZEN + 8;
     // 每个事务的占用长度
     private static final int XID_FIELD_SIZE = 1;
     // 事务的三种状态
     private static final byte FIELD_TRAN_ACTIVE = 0;
-    private static final byte FIELD_TRAN_COMMITTED = 0;
-    private static final byte FIELD_TRAN_ABORTED = 0;
+    private static final byte FIELD_TRAN_COMMITTED = 1;
+    private static final byte FIELD_TRAN_ABORTED = 2;
+    // 已提交但提交记录还没有落盘，只出现在内存中
+    private static final byte FIELD_TRAN_COMMIT_PENDING = 3;
     // 超级事务
     public static final long SUPER_XID = 0;
+    // 冻结事务，记录的 XMIN/XMAX 被冻结后改写为它，对所有事务视为早已提交
+    public static final long FROZEN_XID = -1;
     // XID 文件后缀
     static final String XID_SUFFIX = ".xid";
+    // 每个映射块容纳的事务数，文件按块扩展
+    private static final int XIDS_PER_REGION = 1 << 20;
 
     private RandomAccessFile file;
     private FileChannel fc;
-    private long xidCounter;
-    private Lock counterLock;
+    private AtomicLong xidCounter;
+    private volatile long frozenXid;            // 小于它的事务都已冻结
+    private long droppedXids;                   // 已从文件头部截掉的事务数
+    private Lock growLock;                      // 扩展文件和映射时加锁
+    private volatile MappedByteBuffer[] regions = new MappedByteBuffer[0];
+    private XidStatusTable statusTable;
+    private AtomicLong csnCounter;              // 已分配的提交序号
+    private AtomicLong publishedCSN;            // 已发布的连续提交序号
 
     // 构造函数
     TransactionManagerImpl(RandomAccessFile raf, FileChannel fc) {
         this.file = raf;
         this.fc = fc;
-        counterLock = new ReentrantLock();
+        growLock = new ReentrantLock();
+        csnCounter = new AtomicLong();
+        publishedCSN = new AtomicLong();
         checkXIDCounter(); // 构造后进行XID文件校验
+        // 冻结水位之前的事务不占内存，重启前的事务不记录 CSN
+        statusTable = new XidStatusTable(frozenXid, xidCounter.get() + 1);
+        mapRegions();
+        loadStatus();
     }
 
     /**
      * XID 文件校验
-     * 读取XID_FILE_HEADER中的 xidcounter，根据它计算文件的理论长度，对比实际长度
+     * 读取XID_FILE_HEADER中的 xidcounter，文件长度至少要容纳到 xidcounter
      */
     private void checkXIDCounter() {
         long fileLen = 0;
@@ -58,90 +105,209 @@ public class TransactionManagerImpl implements TransactionManager {
         if (fileLen < LEN_XID_HEADER_LENGTH) {
             Panic.panic(Error.BadXIDFileException);
         }
+        byte[] header = readHeader(fc);
+        long counter = Parser.getLong(header, OF_COUNTER);
+        this.frozenXid = Parser.getLong(header, OF_FROZEN);
+        this.droppedXids = Parser.getLong(header, OF_DROPPED);
+        if (counter < droppedXids) {
+            Panic.panic(Error.BadXIDFileException);
+        }
+        long end = getXidPosition(counter + 1);
+        if (end > fileLen) {
+            Panic.panic(Error.BadXIDFileException);
+        }
+        this.xidCounter = new AtomicLong(counter);
+    }
+
+    private static byte[] readHeader(FileChannel fc) {
         ByteBuffer buf = ByteBuffer.allocate(LEN_XID_HEADER_LENGTH);
         try {
-            fc.position(0);
-            fc.read(buf);
+            fc.read(buf, 0);
         } catch (IOException e) {
             Panic.panic(e);
         }
-        this.xidCounter = Parser.parseLong(buf.array());
-        long end = getXidPosition(this.xidCounter + 1);
-        if (end != fileLen) {
-            Panic.panic(Error.BadXIDFileException);
-        }
+        return buf.array();
     }
 
-    // 根据事务xid取得其在xid文件中对应的位置
-    private long getXidPosition(long xid) {
-        return LEN_XID_HEADER_LENGTH + (xid - 1) * XID_FIELD_SIZE;
-    }
+    /**
+     * 截掉冻结水位之前的整块状态：把保留的部分写入临时文件后原子替换，崩溃时旧文件保持完整
+     */
+    static void compact(File f) {
+        try (RandomAccessFile raf = new RandomAccessFile(f, "r")) {
+            FileChannel fc = raf.getChannel();
+            if (raf.length() < LEN_XID_HEADER_LENGTH) {
+                return;
+            }
+            byte[] header = readHeader(fc);
+            long frozen = Parser.getLong(header, OF_FROZEN);
+            long dropped = Parser.getLong(header, OF_DROPPED);
+            long regions = (frozen - 1 - dropped) / XIDS_PER_REGION;
+            if (regions <= 0) {
+                return;
+            }
+            long skip = regions * XIDS_PER_REGION;
+            Parser.putLong(header, OF_DROPPED, dropped + skip);
 
-    // 更新xid事务的状态为status
-    private void updateXID(long xid, byte status) {
-        long offset = getXidPosition(xid);
-        byte[] tmp = new byte[XID_FIELD_SIZE];
-        tmp[0] = status;
-        ByteBuffer buf = ByteBuffer.wrap(tmp);
-        try {
-            fc.position(offset);
-            fc.write(buf);
+            File tmp = new File(f.getPath() + ".tmp");
+            try (RandomAccessFile out = new RandomAccessFile(tmp, "rw")) {
+                FileChannel outFc = out.getChannel();
+                outFc.truncate(0);
+                outFc.position(0);
+                outFc.write(ByteBuffer.wrap(header));   // transferTo 从当前位置写入
+                long from = LEN_XID_HEADER_LENGTH + skip;
+                long size = raf.length() - from;
+                long done = 0;
+                while (done < size) {
+                    done += fc.transferTo(from + done, size - done, outFc);
+                }
+                outFc.force(true);
+            }
+            Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
         } catch (IOException e) {
             Panic.panic(e);
         }
+    }
+
+    // 映射文件中已有的全部块，不足一块的部分补齐
+    private void mapRegions() {
+        long fileLen = 0;
         try {
-            fc.force(false);
+            fileLen = file.length();
         } catch (IOException e) {
             Panic.panic(e);
         }
+        long xids = fileLen - LEN_XID_HEADER_LENGTH;
+        growTo((xids + XIDS_PER_REGION - 1) / XIDS_PER_REGION);
     }
 
-    // 将XID加一, 并更新XID Header
-    private void incrXIDCounter() {
-        xidCounter++;
-        ByteBuffer buf = ByteBuffer.wrap(Parser.long2Byte(xidCounter));
+    // 把 XID 文件中所有未冻结事务的状态读入内存，计数之后的位置也一并读入，供 advanceXID 使用
+    private void loadStatus() {
+        MappedByteBuffer[] cur = regions;
+        long first = Math.max(frozenXid - droppedXids - 1, 0);
+        for (long index = first; index < (long) cur.length * XIDS_PER_REGION; index++) {
+            byte status = cur[(int) (index / XIDS_PER_REGION)].get((int) (index % XIDS_PER_REGION));
+            if (status != FIELD_TRAN_ACTIVE) {
+                statusTable.set(droppedXids + index + 1, status);
+            }
+        }
+    }
+
+    // 扩展到 n 块，新块落盘后才会被使用；调用方持有 growLock 或处于构造阶段
+    private void growTo(long n) {
+        MappedByteBuffer[] cur = regions;
+        if (n <= cur.length) {
+            return;
+        }
+        MappedByteBuffer[] next = Arrays.copyOf(cur, (int) n);
         try {
-            fc.position(0);
+            long length = LEN_XID_HEADER_LENGTH + n * XIDS_PER_REGION;
+            if (file.length() < length) {
+                file.setLength(length);
+            }
+            writeHeader();
+            fc.force(true);
+            for (int i = cur.length; i < n; i++) {
+                next[i] = fc.map(FileChannel.MapMode.READ_WRITE,
+                        LEN_XID_HEADER_LENGTH + (long) i * XIDS_PER_REGION, XIDS_PER_REGION);
+            }
         } catch (IOException e) {
             Panic.panic(e);
         }
+        statusTable.ensureCapacity(droppedXids + n * XIDS_PER_REGION);
+        regions = next;
+    }
+
+    // 保证 xid 所在的块已经映射，且 CSN 位置已分配
+    private void ensureMapped(long xid) {
+        if (xid - droppedXids <= (long) regions.length * XIDS_PER_REGION && statusTable.hasCSNCapacity(xid)) {
+            return;
+        }
+        growLock.lock();
         try {
-            fc.force(false);
-        } catch (IOException e) {
-            Panic.panic(e);
+            growTo((xid - droppedXids - 1) / XIDS_PER_REGION + 1);
+            statusTable.ensureCSNCapacity(xid);
+        } finally {
+            growLock.unlock();
         }
     }
 
-    // 检测XID事务是否处于status状态
-    private boolean checkXID(long xid, byte status) {
-        long offset = getXidPosition(xid);
-        ByteBuffer buf = ByteBuffer.wrap(new byte[XID_FIELD_SIZE]);
+    // 根据事务xid取得其在xid文件中对应的位置
+    private long getXidPosition(long xid) {
+        return LEN_XID_HEADER_LENGTH + (xid - droppedXids - 1) * XID_FIELD_SIZE;
+    }
+
+    // 更新xid事务的状态为status，只写入映射区域，不等待落盘；已冻结的事务不再修改
+    private void updateXID(long xid, byte status) {
+        if (xid < frozenXid) {
+            return;
+        }
+        long index = xid - droppedXids - 1;
+        regions[(int) (index / XIDS_PER_REGION)].put((int) (index % XIDS_PER_REGION), status);
+        statusTable.set(xid, status);
+    }
+
+    // 更新XID Header，不单独落盘
+    private void writeHeader() {
+        byte[] header = new byte[LEN_XID_HEADER_LENGTH];
+        Parser.putLong(header, OF_COUNTER, xidCounter.get());
+        Parser.putLong(header, OF_FROZEN, frozenXid);
+        Parser.putLong(header, OF_DROPPED, droppedXids);
+        ByteBuffer buf = ByteBuffer.wrap(header);
         try {
-            fc.position(offset);
-            fc.read(buf);
+            fc.write(buf, 0);
         } catch (IOException e) {
             Panic.panic(e);
         }
-        return buf.array()[0] == status;
+    }
+
+    // 检测XID事务是否处于status状态，只查内存
+    private boolean checkXID(long xid, byte status) {
+        return statusTable.get(xid) == status;
+    }
+
+    private boolean isFrozen(long xid) {
+        return xid == FROZEN_XID || xid < frozenXid;
     }
 
     // 开启一个事务 并返回xid
     public long begin() {
-        counterLock.lock();
-        try {
-            long xid = xidCounter + 1;
-            updateXID(xid, FIELD_TRAN_ACTIVE);
-            incrXIDCounter();
-            return xid;
-        } finally {
-            counterLock.unlock();
-        }
+        long xid = xidCounter.incrementAndGet();
+        ensureMapped(xid);
+        // 崩溃前分配过但没有留下日志的 XID 会被再次分配，覆盖其残留状态
+        updateXID(xid, FIELD_TRAN_ACTIVE);
+        return xid;
     }
 
-    // 提交事务
+    // 提交事务，调用前提交记录必须已经在日志中落盘
     @Override
     public void commit(long xid) {
+        long csn = csnCounter.incrementAndGet();
+        statusTable.setCSN(xid, csn);
         updateXID(xid, FIELD_TRAN_COMMITTED);
+        publishCSN(csn);
+    }
+
+    // 异步提交，提交记录可以还未落盘：只在内存中标记，XID 文件等 persistCommit 写入
+    @Override
+    public void commitAsync(long xid) {
+        long csn = csnCounter.incrementAndGet();
+        statusTable.setCSN(xid, csn);
+        statusTable.set(xid, FIELD_TRAN_COMMIT_PENDING);
+        publishCSN(csn);
+    }
+
+    // 异步提交的提交记录落盘后调用
+    @Override
+    public void persistCommit(long xid) {
+        updateXID(xid, FIELD_TRAN_COMMITTED);
+    }
+
+    // 按 CSN 顺序发布，前面的提交写完后才能推进
+    private void publishCSN(long csn) {
+        while (publishedCSN.get() != csn - 1) {
+            Thread.yield();
+        }
+        publishedCSN.set(csn);
     }
 
     // 回滚事务
@@ -150,27 +316,84 @@ public class TransactionManagerImpl implements TransactionManager {
         updateXID(xid, FIELD_TRAN_ABORTED);
     }
 
+    // 恢复时调用，xid 之前的事务号不会再被分配
+    @Override
+    public void advanceXID(long xid) {
+        ensureMapped(xid);
+        long cur;
+        while ((cur = xidCounter.get()) < xid) {
+            if (xidCounter.compareAndSet(cur, xid)) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * 推进冻结水位并落盘，调用前冻结对记录的修改必须已经在日志中落盘
+     * 释放水位之前的内存状态块，文件中的部分在下次打开时截掉
+     */
+    @Override
+    public void freeze(long xid) {
+        growLock.lock();
+        try {
+            if (xid <= frozenXid) {
+                return;
+            }
+            frozenXid = xid;
+            writeHeader();
+            fc.force(false);
+            statusTable.release(xid);
+        } catch (IOException e) {
+            Panic.panic(e);
+        } finally {
+            growLock.unlock();
+        }
+    }
+
     @Override
     public boolean isActive(long xid) {
-        if (xid == SUPER_XID) return false;
+        if (xid == SUPER_XID || isFrozen(xid)) return false;
         return checkXID(xid, FIELD_TRAN_ACTIVE);
     }
 
     @Override
     public boolean isCommitted(long xid) {
         if (xid == SUPER_XID) return false;
-        return checkXID(xid, FIELD_TRAN_COMMITTED);
+        if (isFrozen(xid)) return true;
+        return checkXID(xid, FIELD_TRAN_COMMITTED) || checkXID(xid, FIELD_TRAN_COMMIT_PENDING);
+    }
+
+    @Override
+    public boolean isCommitPending(long xid) {
+        if (xid == SUPER_XID || isFrozen(xid)) return false;
+        return checkXID(xid, FIELD_TRAN_COMMIT_PENDING);
+    }
+
+    @Override
+    public long getCSN(long xid) {
+        if (isFrozen(xid)) return 0;
+        return statusTable.getCSN(xid);
+    }
+
+    @Override
+    public long csn() {
+        return publishedCSN.get();
     }
 
     @Override
     public boolean isAbort(long xid) {
-        if (xid == SUPER_XID) return false;
+        if (xid == SUPER_XID || isFrozen(xid)) return false;
         return checkXID(xid, FIELD_TRAN_ABORTED);
     }
 
     @Override
     public void close() {
         try {
+            for (MappedByteBuffer region : regions) {
+                region.force();
+            }
+            writeHeader();
+            fc.force(false);
             fc.close();
             file.close();
         } catch (IOException e) {
@@ -0,0 +1,169 @@
+package com.qihang.qhdb.backend.tm;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * @Author: zhqihang
+ * @Date: 2024/03/10
+ * @Project: qhdb
+ * @Description: 常驻内存的事务状态表
+ *
+ * 每个事务的状态占 2 bit，一个 long 存放 32 个事务，按块分配：
+ *      块一旦分配就不再移动，读写都不加锁（写通过 CAS 只修改自己的 2 bit）；
+ *      块目录只在分配或释放块时整体替换，由调用方保证串行（TM 的 growLock）。
+ * 块按相对基准 XID 的偏移编号，基准是打开时的冻结水位，释放冻结水位之前的块时一并推进，
+ * 内存只与未冻结的事务数有关，与历史上分配过的事务总数无关。
+ * 尚未分配的位置状态为 0，即活跃，与 XID 文件中未写入的状态一致。
+ * 基准之前的事务读到 0，写入被忽略，由 TM 保证不再访问。
+ *
+ * 已提交事务的提交序号（CSN）每个事务 8 字节，单独分块保存：
+ *      基准是重启后分配的第一个 XID，重启前提交的事务没有记录，读到 0，即早于所有快照；
+ *      块随 begin 分配到的 XID 逐块分配，冻结时与状态块一起释放。
+ */
+class XidStatusTable {
+
+    private static final int BITS_PER_XID = 2;
+    private static final int XIDS_PER_WORD = Long.SIZE / BITS_PER_XID;
+    private static final long STATUS_MASK = (1L << BITS_PER_XID) - 1;
+
+    // 每块 1<<14 个 long，即 512K 个事务，128KB
+    private static final int WORDS_PER_CHUNK_SHIFT = 14;
+    private static final int WORDS_PER_CHUNK = 1 << WORDS_PER_CHUNK_SHIFT;
+    private static final long XIDS_PER_CHUNK = (long) WORDS_PER_CHUNK * XIDS_PER_WORD;
+
+    // 每块 64K 个事务的 CSN，512KB
+    private static final long CSNS_PER_CHUNK = 1 << 16;
+
+    // 块目录：第 i 块保存 [base + i*块大小, base + (i+1)*块大小) 的事务，整体替换
+    private static class Chunks {
+        final long base;
+        final AtomicLongArray[] arrays;
+
+        Chunks(long base, AtomicLongArray[] arrays) {
+            this.base = base;
+            this.arrays = arrays;
+        }
+    }
+
+    private volatile Chunks status;
+    private volatile Chunks csn;
+
+    // base 之前的事务不再分配状态，csnBase 之前的事务不记录 CSN
+    XidStatusTable(long base, long csnBase) {
+        status = new Chunks(base, new AtomicLongArray[0]);
+        csn = new Chunks(Math.max(base, csnBase), new AtomicLongArray[0]);
+    }
+
+    // 保证 [base, xid] 的状态都已分配，只在 TM 的 growLock 或构造时调用
+    void ensureCapacity(long xid) {
+        status = grow(status, xid, XIDS_PER_CHUNK, WORDS_PER_CHUNK);
+    }
+
+    // xid 的 CSN 位置是否已分配，基准之前的事务视为已分配
+    boolean hasCSNCapacity(long xid) {
+        Chunks cur = csn;
+        return xid < cur.base || (xid - cur.base) / CSNS_PER_CHUNK < cur.arrays.length;
+    }
+
+    // 保证 [csnBase, xid] 的 CSN 都已分配，只在 TM 的 growLock 下调用
+    void ensureCSNCapacity(long xid) {
+        csn = grow(csn, xid, CSNS_PER_CHUNK, (int) CSNS_PER_CHUNK);
+    }
+
+    private static Chunks grow(Chunks cur, long xid, long xidsPerChunk, int chunkLength) {
+        if (xid < cur.base) {
+            return cur;
+        }
+        int need = (int) ((xid - cur.base) / xidsPerChunk) + 1;
+        if (need <= cur.arrays.length) {
+            return cur;
+        }
+        AtomicLongArray[] next = Arrays.copyOf(cur.arrays, need);
+        for (int i = cur.arrays.length; i < need; i++) {
+            next[i] = new AtomicLongArray(chunkLength);
+        }
+        return new Chunks(cur.base, next);
+    }
+
+    byte get(long xid) {
+        Chunks cur = status;
+        if (xid < cur.base) {
+            return 0;
+        }
+        long offset = xid - cur.base;
+        int chunk = (int) (offset / XIDS_PER_CHUNK);
+        if (chunk >= cur.arrays.length) {
+            return 0;
+        }
+        long index = offset % XIDS_PER_CHUNK;
+        long word = cur.arrays[chunk].get((int) (index / XIDS_PER_WORD));
+        return (byte) ((word >>> shift(index)) & STATUS_MASK);
+    }
+
+    void set(long xid, byte status) {
+        Chunks cur = this.status;
+        if (xid < cur.base) {
+            return;
+        }
+        long offset = xid - cur.base;
+        AtomicLongArray chunk = cur.arrays[(int) (offset / XIDS_PER_CHUNK)];
+        long index = offset % XIDS_PER_CHUNK;
+        int i = (int) (index / XIDS_PER_WORD);
+        int shift = shift(index);
+        while (true) {
+            long word = chunk.get(i);
+            long next = (word & ~(STATUS_MASK << shift)) | (((long) status & STATUS_MASK) << shift);
+            if (chunk.compareAndSet(i, word, next)) {
+                return;
+            }
+        }
+    }
+
+    // 释放完全位于 xid 之前的块并推进基准，只在 TM 的 growLock 下调用
+    void release(long xid) {
+        status = release(status, xid, XIDS_PER_CHUNK);
+        csn = release(csn, xid, CSNS_PER_CHUNK);
+    }
+
+    private static Chunks release(Chunks cur, long xid, long xidsPerChunk) {
+        if (xid <= cur.base) {
+            return cur;
+        }
+        int n = (int) Math.min((xid - cur.base) / xidsPerChunk, cur.arrays.length);
+        if (n == 0) {
+            return cur;
+        }
+        return new Chunks(cur.base + n * xidsPerChunk, Arrays.copyOfRange(cur.arrays, n, cur.arrays.length));
+    }
+
+    long getCSN(long xid) {
+        Chunks cur = csn;
+        if (xid < cur.base) {
+            return 0;
+        }
+        long offset = xid - cur.base;
+        int chunk = (int) (offset / CSNS_PER_CHUNK);
+        if (chunk >= cur.arrays.length) {
+            return 0;
+        }
+        return cur.arrays[chunk].get((int) (offset % CSNS_PER_CHUNK));
+    }
+
+    void setCSN(long xid, long value) {
+        Chunks cur = csn;
+        if (xid < cur.base) {
+            return;
+        }
+        long offset = xid - cur.base;
+        int chunk = (int) (offset / CSNS_PER_CHUNK);
+        if (chunk >= cur.arrays.length) {
+            return;
+        }
+        cur.arrays[chunk].set((int) (offset % CSNS_PER_CHUNK), value);
+    }
+
+    private static int shift(long index) {
+        return (int) (index % XIDS_PER_WORD) * BITS_PER_XID;
+    }
+}
@@ -2,7 +2,6 @@ package com.qihang.qhdb.backend.utils;
 
 import com.google.common.primitives.Bytes;
 
-import java.nio.ByteBuffer;
 import java.util.Arrays;
 
 /**
@@ -10,38 +9,76 @@ import java.util.Arrays;
  * @Date: 2024/03/10
  * @Project: qhdb
  * @Description: ...
+ *
+ * 所有整数都按大端序编码。getXxx / putXxx 直接在数组的 offset 处读写，不拷贝也不分配对象，
+ * 读写页面、日志、Entry 等已有数组中的字段时使用；parseXxx / xxx2Byte 用于独立的小数组。
  */
 public class Parser {
 
+    public static long getLong(byte[] buf, int offset) {
+        return ((long) getInt(buf, offset) << 32) | (getInt(buf, offset + 4) & 0xffffffffL);
+    }
+
+    public static int getInt(byte[] buf, int offset) {
+        return ((buf[offset] & 0xff) << 24)
+                | ((buf[offset + 1] & 0xff) << 16)
+                | ((buf[offset + 2] & 0xff) << 8)
+                | (buf[offset + 3] & 0xff);
+    }
+
+    public static short getShort(byte[] buf, int offset) {
+        return (short) (((buf[offset] & 0xff) << 8) | (buf[offset + 1] & 0xff));
+    }
+
+    public static void putLong(byte[] buf, int offset, long value) {
+        putInt(buf, offset, (int) (value >>> 32));
+        putInt(buf, offset + 4, (int) value);
+    }
+
+    public static void putInt(byte[] buf, int offset, int value) {
+        buf[offset] = (byte) (value >>> 24);
+        buf[offset + 1] = (byte) (value >>> 16);
+        buf[offset + 2] = (byte) (value >>> 8);
+        buf[offset + 3] = (byte) value;
+    }
+
+    public static void putShort(byte[] buf, int offset, short value) {
+        buf[offset] = (byte) (value >>> 8);
+        buf[offset + 1] = (byte) value;
+    }
+
     public static long parseLong(byte[] buf) {
-        ByteBuffer buffer = ByteBuffer.wrap(buf, 0, 8);
-        return buffer.getLong();
+        return getLong(buf, 0);
     }
 
     public static byte[] long2Byte(long value) {
-        return ByteBuffer.allocate(Long.SIZE / Byte.SIZE).putLong(value).array();
+        byte[] buf = new byte[8];
+        putLong(buf, 0, value);
+        return buf;
     }
 
     public static byte[] short2Byte(short value) {
-        return ByteBuffer.allocate(Short.SIZE / Byte.SIZE).putShort(value).array();
+        byte[] buf = new byte[2];
+        putShort(buf, 0, value);
+        return buf;
     }
 
     public static short parseShort(byte[] buf) {
-        ByteBuffer buffer = ByteBuffer.wrap(buf, 0, 2);
-        return buffer.getShort();
+        return getShort(buf, 0);
     }
 
     public static byte[] int2Byte(int value) {
-        return ByteBuffer.allocate(Integer.SIZE / Byte.SIZE).putInt(value).array();
+        byte[] buf = new byte[4];
+        putInt(buf, 0, value);
+        return buf;
     }
 
     public static int parseInt(byte[] buf) {
-        ByteBuffer buffer = ByteBuffer.wrap(buf, 0, 4);
-        return buffer.getInt();
+        return getInt(buf, 0);
     }
 
     public static ParseStringRes parseString(byte[] raw) {
-        int length = parseInt(Arrays.copyOf(raw, 4));
+        int length = getInt(raw, 0);
         String str = new String(Arrays.copyOfRange(raw, 4, 4+length));
         return new ParseStringRes(str, length+4);
     }
@@ -1,11 +1,14 @@
 package com.qihang.qhdb.backend.vm;
 
-import com.google.common.primitives.Bytes;
 import com.qihang.qhdb.backend.common.SubArray;
+import com.qihang.qhdb.backend.dm.DataManager;
 import com.qihang.qhdb.backend.dm.dataItem.DataItem;
+import com.qihang.qhdb.backend.tm.TransactionManager;
+import com.qihang.qhdb.backend.tm.TransactionManagerImpl;
 import com.qihang.qhdb.backend.utils.Parser;
 
-import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.List;
 /**
  * @Author: zhqihang
  * @Date: 2024/03/14
@@ -14,17 +17,30 @@ import java.util.Arrays;
  *
  * VM向上层抽象出entry，用于记录数据版本链
  * entry结构：
- *      [XMIN] [XMAX] [data]
- *      8byte  8byte
+ *      [XMIN] [XMAX] [HINT] [data]
+ *      8byte  8byte  1byte
  *      XMIN：创建该条记录（版本）的事务编号
  *      XMAX：删除该条记录（版本）的事务编号 (DM 没有删除操作的原因, 只需要设置其 XMAX, 等价于删除)
+ *      HINT：提示位，缓存 XMIN、XMAX 已提交或已回滚的结果，之后判断可见性不必再查 TM
  *      DATA：这条记录持有的数据
+ *
+ * 事务结束后状态不会再变，提示位在第一次查到结果时直接写入页面，不记录日志：
+ * 丢失了只是下次再查一次 TM。修改 XMIN、XMAX 时在同一次日志记录中清除对应的提示位。
  */
 public class Entry {
 
     private static final int OF_XMIN = 0;
     private static final int OF_XMAX = OF_XMIN+8;
-    private static final int OF_DATA = OF_XMAX+8;
+    private static final int OF_HINT = OF_XMAX+8;
+    private static final int OF_DATA = OF_HINT+1;
+
+    // 提示位
+    public static final byte HINT_XMIN_COMMITTED = 1;
+    public static final byte HINT_XMIN_ABORTED = 1 << 1;
+    public static final byte HINT_XMAX_COMMITTED = 1 << 2;
+    public static final byte HINT_XMAX_ABORTED = 1 << 3;
+    private static final byte HINT_XMIN = HINT_XMIN_COMMITTED | HINT_XMIN_ABORTED;
+    private static final byte HINT_XMAX = HINT_XMAX_COMMITTED | HINT_XMAX_ABORTED;
 
     private long uid;           // 版本id
     private DataItem dataItem;  // 数据项
@@ -37,6 +53,10 @@ public class Entry {
     }
 
     public static Entry newEntry(VersionManager vm, DataItem dataItem, long uid) {
+        // 恢复时被撤销的插入会留下非法的 DataItem，dm.read 返回 null
+        if (dataItem == null) {
+            return null;
+        }
         Entry entry = new Entry();
         entry.uid = uid;
         entry.dataItem = dataItem;
@@ -52,9 +72,10 @@ public class Entry {
      * @return
      */
     public static byte[] wrapEntryRaw(long xid, byte[] data) {
-        byte[] xmin = Parser.long2Byte(xid);
-        byte[] xmax = new byte[8];
-        return Bytes.concat(xmin, xmax, data);
+        byte[] raw = new byte[OF_DATA + data.length];
+        Parser.putLong(raw, OF_XMIN, xid);
+        System.arraycopy(data, 0, raw, OF_DATA, data.length);
+        return raw;
     }
 
     public void release() {
@@ -87,7 +108,7 @@ public class Entry {
         dataItem.rLock();
         try {
             SubArray sa = dataItem.data();
-            return Parser.parseLong(Arrays.copyOfRange(sa.raw, sa.start+OF_XMIN, sa.start+OF_XMAX));
+            return Parser.getLong(sa.raw, sa.start+OF_XMIN);
         } finally {
             dataItem.rUnLock();
         }
@@ -97,7 +118,41 @@ public class Entry {
         dataItem.rLock();
         try {
             SubArray sa = dataItem.data();
-            return Parser.parseLong(Arrays.copyOfRange(sa.raw, sa.start+OF_XMAX, sa.start+OF_DATA));
+            return Parser.getLong(sa.raw, sa.start+OF_XMAX);
+        } finally {
+            dataItem.rUnLock();
+        }
+    }
+
+    public byte getHint() {
+        dataItem.rLock();
+        try {
+            SubArray sa = dataItem.data();
+            return sa.raw[sa.start+OF_HINT];
+        } finally {
+            dataItem.rUnLock();
+        }
+    }
+
+    /**
+     * 设置提示位，不记录日志
+     * 持有读锁时没有并发的 setXmax 和 freeze，只有 XMIN 或 XMAX 仍然是 xid 时才设置
+     *
+     * @param isXmin 提示的是 XMIN 还是 XMAX
+     * @param xid 查询状态时 XMIN 或 XMAX 的值
+     * @param hint 提示位
+     */
+    public void setHint(boolean isXmin, long xid, byte hint) {
+        dataItem.rLock();
+        try {
+            SubArray sa = dataItem.data();
+            int of = isXmin ? OF_XMIN : OF_XMAX;
+            if(Parser.getLong(sa.raw, sa.start+of) != xid) {
+                return;
+            }
+            // 并发设置不同的提示位时可能丢失其中一个，之后会重新设置
+            sa.raw[sa.start+OF_HINT] |= hint;
+            dataItem.page().setDirty(true);
         } finally {
             dataItem.rUnLock();
         }
@@ -111,12 +166,92 @@ public class Entry {
         dataItem.before(); // 修改数据前必须执行 包含了加写锁，设置脏页面，暂存需要修改的数据内容到oldRaw
         try {
             SubArray sa = dataItem.data();
-            System.arraycopy(Parser.long2Byte(xid), 0, sa.raw, sa.start+OF_XMAX, 8);
+            Parser.putLong(sa.raw, sa.start+OF_XMAX, xid);
+            sa.raw[sa.start+OF_HINT] &= ~HINT_XMAX;
         } finally {
             dataItem.after(xid); // 修改数据后必须执行 记录此事务的修改操作到日志，关闭写锁
         }
     }
 
+    /**
+     * 批量修改同一页面上多条记录的 XMAX，只写一条日志
+     * 按 UID 顺序加写锁，批量之间不会互相等待成环
+     *
+     * @param entries 同一页面上的记录，按 UID 升序
+     * @param xid
+     * @param dm
+     */
+    public static void setXmax(List<Entry> entries, long xid, DataManager dm) {
+        List<DataItem> dis = new ArrayList<>(entries.size());
+        try {
+            for(Entry entry : entries) {
+                entry.dataItem.before();
+                dis.add(entry.dataItem);
+                SubArray sa = entry.dataItem.data();
+                Parser.putLong(sa.raw, sa.start+OF_XMAX, xid);
+                sa.raw[sa.start+OF_HINT] &= ~HINT_XMAX;
+            }
+        } finally {
+            if(!dis.isEmpty()) {
+                dm.afterBatch(xid, dis);
+            }
+        }
+    }
+
+    /**
+     * 冻结：把水位之前的事务引用改写掉，之后判断可见性不再需要这些事务的状态
+     *      XMIN 已提交：改为 FROZEN_XID；XMIN 已回滚：记录永远不可见，XMIN 和 XMAX 都改为 FROZEN_XID
+     *      XMAX 已提交：记录对所有事务都已删除，同上；XMAX 已回滚：删除无效，清零
+     * 在写锁下重新读取并修改，与并发的 setXmax 互斥
+     *
+     * @param tm
+     * @param horizon 冻结水位，之前的事务都已结束，且不在任何活跃事务的快照中
+     */
+    public void freeze(TransactionManager tm, long horizon) {
+        if(!needFreeze(getXmin(), horizon) && !needFreeze(getXmax(), horizon)) {
+            return;
+        }
+        dataItem.before();
+        SubArray sa = dataItem.data();
+        long xmin = Parser.getLong(sa.raw, sa.start+OF_XMIN);
+        long xmax = Parser.getLong(sa.raw, sa.start+OF_XMAX);
+        long newXmin = xmin, newXmax = xmax;
+        if(needFreeze(xmin, horizon)) {
+            newXmin = TransactionManagerImpl.FROZEN_XID;
+            if(!tm.isCommitted(xmin)) {
+                newXmax = TransactionManagerImpl.FROZEN_XID;
+            }
+        }
+        if(newXmax != TransactionManagerImpl.FROZEN_XID && needFreeze(xmax, horizon)) {
+            if(tm.isCommitted(xmax)) {
+                newXmin = TransactionManagerImpl.FROZEN_XID;
+                newXmax = TransactionManagerImpl.FROZEN_XID;
+            } else {
+                newXmax = 0;
+            }
+        }
+        if(newXmin == xmin && newXmax == xmax) {
+            dataItem.unBefore();
+            return;
+        }
+        try {
+            Parser.putLong(sa.raw, sa.start+OF_XMIN, newXmin);
+            Parser.putLong(sa.raw, sa.start+OF_XMAX, newXmax);
+            if(newXmin != xmin) {
+                sa.raw[sa.start+OF_HINT] &= ~HINT_XMIN;
+            }
+            if(newXmax != xmax) {
+                sa.raw[sa.start+OF_HINT] &= ~HINT_XMAX;
+            }
+        } finally {
+            dataItem.after(TransactionManagerImpl.SUPER_XID);
+        }
+    }
+
+    private static boolean needFreeze(long xid, long horizon) {
+        return xid != TransactionManagerImpl.SUPER_XID && xid != TransactionManagerImpl.FROZEN_XID && xid < horizon;
+    }
+
     public long getUid() {
         return uid;
     }
@@ -2,207 +2,577 @@ package com.qihang.qhdb.backend.vm;
 
 import com.qihang.qhdb.common.Error;
 
-import java.util.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
 /**
- * 表锁：
+ * 行锁表：
  * 维护了一个依赖等待图，以进行死锁检测
  *
  * 上一节提到了 2PL 会阻塞事务，直至持有锁的线程释放锁。
  * 可以将这种等待关系抽象成有向边，例如 Tj 在等待 Ti，就可以表示为 Tj –> Ti。
  * 这样，无数有向边就可以形成一个图（不一定是连通图）。
- * 检测死锁也就简单了，只需要查看这个图中是否有环即可。(深度优先搜索)
+ * 检测死锁也就简单了，只需要查看这个图中是否有环即可。
  *
+ * 按 UID 的哈希分成 PARTITIONS 个分区，每个分区有自己的锁、持有者表和等待队列，
+ * 访问不同行的事务互不阻塞。死锁检测不在每次等待时进行：
+ * 等待者先等待 DEADLOCK_CHECK_DELAY，还没拿到锁才锁住全部分区检查一次，
+ * 大部分短暂的等待不会触发检测。之后每次检测的间隔翻倍，最长 MAX_DEADLOCK_CHECK_DELAY：
+ * 环总是由最后加入的等待者闭合，它的第一次检测就能发现，
+ * 之后的检测只是兜底，热点行上大量长时间等待的事务不会反复锁住整张锁表。
+ *
+ * 每个事务最多等待一个 UID，每个 UID 最多被一个事务持有，所以每个事务在图中最多只有一条出边，
+ * 检测时只需要从等待者出发沿等待链走下去，回到自己就是死锁。
+ *
+ * 按 XID 记录的状态（持有的 UID、正在等待的 UID、是否被刺伤）同样按 XID 的哈希分区，
+ * 保存在 LongObjectMap / LongLongMap 中，沿等待链查找时不装箱。
+ * 加锁顺序：先 UID 分区，后 XID 分区，持有 XID 分区锁时不再获取 UID 分区锁。
+ *
+ * 除了死锁检测（DETECT），还可以按 XID 大小（越小越老）避免死锁，不需要等待图：
+ *      WAIT_DIE：只有比持有者和所有等待者都老的事务才等待，否则直接失败；
+ *      WOUND_WAIT：老事务请求年轻事务持有的锁时，年轻事务被“刺伤”，
+ *                  正在等待或之后再请求锁时失败，由上层回滚后释放锁；年轻事务等待老事务。
+ * 两种方式下等待边都只指向同一个方向，不会成环。
+ * waitTimeout 大于 0 时，等待超过该时间（毫秒）撤销等待并抛出 LockWaitTimeoutException。
  */
 public class LockTable {
-    
-    private Map<Long, List<Long>> x2u;  // 某个XID已经获得的资源的UID列表
-    private Map<Long, Long> u2x;        // UID被某个XID持有
-    private Map<Long, List<Long>> wait; // 正在等待UID的XID列表
-    private Map<Long, Lock> waitLock;   // 正在等待资源的XID的锁
-    private Map<Long, Long> waitU;      // XID正在等待的UID
-    private Lock lock;
-    private Map<Long, Integer> xidStamp;
-    private int stamp;                  // 访问戳
+
+    public static final int DETECT = 0;
+    public static final int WAIT_DIE = 1;
+    public static final int WOUND_WAIT = 2;
+
+    private static final int PARTITIONS = 64;              // 必须是 2 的幂
+    private static final long DEADLOCK_CHECK_DELAY = 50;   // 毫秒
+    private static final long MAX_DEADLOCK_CHECK_DELAY = 5000;
+    private static final long NONE = -1;                   // LongLongMap 中不存在
+
+    private final Partition[] partitions;
+    private final XidPartition[] xidPartitions;
+    private final Lock detectLock;              // 同一时间只进行一次死锁检测
+    private final int policy;
+    private final long waitTimeout;
+
+    // 一个分区，所有字段都由分区锁保护
+    private static class Partition {
+        final Lock lock = new ReentrantLock();
+        final LongLongMap u2x = new LongLongMap();                  // UID被某个XID持有
+        final Map<Long, LinkedList<Waiter>> wait = new HashMap<>(); // 正在等待UID的XID队列
+    }
+
+    // 一组事务的加锁状态，所有字段都由分区锁保护
+    private static class XidPartition {
+        final Lock lock = new ReentrantLock();
+        final LongObjectMap<Held> x2u = new LongObjectMap<>();  // 某个XID已经获得的资源的UID列表
+        final LongLongMap waitU = new LongLongMap();            // XID正在等待的UID
+    }
+
+    // 一个正在等待的事务，拿到锁或被刺伤时 countDown
+    private static class Waiter {
+        final long xid;
+        final long uid;
+        final CountDownLatch granted = new CountDownLatch(1);
+        volatile boolean wounded;
+
+        Waiter(long xid, long uid) {
+            this.xid = xid;
+            this.uid = uid;
+        }
+    }
+
+    // 事务持有的UID，只追加，释放时整体取走；由 XID 分区锁保护
+    private static class Held {
+        long[] uids = new long[4];
+        int size;
+        boolean wounded;    // WOUND_WAIT 下被刺伤、等待回滚
+
+        void add(long uid) {
+            if(size == uids.length) {
+                long[] next = new long[size * 2];
+                System.arraycopy(uids, 0, next, 0, size);
+                uids = next;
+            }
+            uids[size ++] = uid;
+        }
+    }
 
     public LockTable() {
-        x2u = new HashMap<>();
-        u2x = new HashMap<>();
-        wait = new HashMap<>();
-        waitLock = new HashMap<>();
-        waitU = new HashMap<>();
-        lock = new ReentrantLock();
+        this(DETECT, 0);
     }
 
     /**
-     * 在每次出现等待的情况时，就尝试向图中增加一条边，并进行死锁检测。
-     * 如果检测到死锁，就撤销这条边，不允许添加，并撤销该事务。
-     *
-     * 向依赖等待图中添加一个等待记录
-     * 事务xid 阻塞等待 数据项uid，如果会造成死锁则抛出异常
+     * @param policy 死锁处理方式：DETECT、WAIT_DIE 或 WOUND_WAIT
+     * @param waitTimeout 锁等待超时（毫秒），0 表示一直等待
+     */
+    public LockTable(int policy, long waitTimeout) {
+        this.policy = policy;
+        this.waitTimeout = waitTimeout;
+        partitions = new Partition[PARTITIONS];
+        for(int i = 0; i < PARTITIONS; i ++) {
+            partitions[i] = new Partition();
+        }
+        xidPartitions = new XidPartition[PARTITIONS];
+        for(int i = 0; i < PARTITIONS; i ++) {
+            xidPartitions[i] = new XidPartition();
+        }
+        detectLock = new ReentrantLock();
+    }
+
+    /**
+     * 事务xid 获取 数据项uid 的锁，需要等待时阻塞，直到获得锁
+     * DETECT 下等待超过 DEADLOCK_CHECK_DELAY 后进行死锁检测，之后间隔翻倍，检测到死锁、
+     * 按 WAIT_DIE 需要放弃或按 WOUND_WAIT 被刺伤时抛出 DeadlockException，等待超时抛出 LockWaitTimeoutException
      *
      * @param xid 事务id
      * @param uid 数据项key
-     * @return 不需要等待则返回null，否则返回锁对象
      * @throws Exception
      */
-    public Lock add(long xid, long uid) throws Exception {
-        lock.lock();
+    public void acquire(long xid, long uid) throws Exception {
+        if(isWounded(xid)) {
+            throw Error.DeadlockException;
+        }
+        Partition p = partition(uid);
+        Waiter w;
+        long victim = NONE;
+        p.lock.lock();
         try {
-            // dataitem数据已经被事务xid获取到，不需要等待，返回null
-            if(isInList(x2u, xid, uid)) {
-                return null;
-            }
-            // 如果 uid 资源不被持有 xid获得该uid 加入持有列表 不需要等待 返回null
-            if(!u2x.containsKey(uid)) {
-                u2x.put(uid, xid);
-                putIntoList(x2u, xid, uid);
-                return null;
-            }
-            waitU.put(xid, uid); // 添加等待状态
-
-            putIntoList(wait, xid, uid); // 加入列表
-            // 死锁检测
-            if(hasDeadLock()) {
-                waitU.remove(xid);
-                removeFromList(wait, uid, xid);
+            long holder = p.u2x.get(uid, NONE);
+            // dataitem数据已经被事务xid获取到，不需要等待
+            if(holder == xid) {
+                return;
+            }
+            // 如果 uid 资源不被持有 xid获得该uid 加入持有列表 不需要等待
+            if(holder == NONE) {
+                p.u2x.put(uid, xid);
+                hold(xid, uid);
+                return;
+            }
+            LinkedList<Waiter> q = p.wait.get(uid);
+            // 队尾是最老的等待者，比它年轻就放弃
+            if(policy == WAIT_DIE && xid > (q == null ? holder : q.peekLast().xid)) {
                 throw Error.DeadlockException;
             }
-            // 返回上了锁的 Lock 对象
-            // 调用方在获取到该对象时，需要尝试获取该对象的锁，由此实现阻塞线程的目的
-            Lock l = new ReentrantLock();
-            l.lock();
-            waitLock.put(xid, l);
-            return l;
-
+            // 添加等待状态，加入队列
+            w = new Waiter(xid, uid);
+            if(q == null) {
+                q = new LinkedList<>();
+                p.wait.put(uid, q);
+            }
+            if(policy == WOUND_WAIT) {
+                // 按 XID 排队，锁释放时交给最老的等待者
+                ListIterator<Waiter> it = q.listIterator();
+                while(it.hasNext()) {
+                    if(it.next().xid > xid) {
+                        it.previous();
+                        break;
+                    }
+                }
+                it.add(w);
+                if(xid < holder) {
+                    victim = holder;
+                }
+            } else {
+                q.addLast(w);
+            }
+            XidPartition xp = xidPartition(xid);
+            xp.lock.lock();
+            try {
+                xp.waitU.put(xid, uid);
+            } finally {
+                xp.lock.unlock();
+            }
         } finally {
-            lock.unlock();
+            p.lock.unlock();
+        }
+
+        if(victim != NONE) {
+            wound(victim);
+        }
+        // 在加入等待之前被刺伤，刺伤方可能没有看到这次等待
+        if(isWounded(xid)) {
+            cancel(w);
+            throw Error.DeadlockException;
+        }
+
+        long deadline = waitTimeout > 0 ? System.currentTimeMillis() + waitTimeout : Long.MAX_VALUE;
+        long checkDelay = policy == DETECT ? DEADLOCK_CHECK_DELAY : Long.MAX_VALUE;
+        while(true) {
+            long delay = Math.min(checkDelay, deadline - System.currentTimeMillis());
+            if(delay > 0 && w.granted.await(delay, TimeUnit.MILLISECONDS)) {
+                break;
+            }
+            if(System.currentTimeMillis() >= deadline) {
+                if(cancel(w)) {
+                    throw Error.LockWaitTimeoutException;
+                }
+                break;  // 撤销之前已经拿到锁或被刺伤
+            }
+            if(policy == DETECT) {
+                if(detectDeadLock(w)) {
+                    throw Error.DeadlockException;
+                }
+                checkDelay = Math.min(checkDelay * 2, MAX_DEADLOCK_CHECK_DELAY);
+            }
+        }
+        if(w.wounded) {
+            throw Error.DeadlockException;
         }
     }
 
     /**
-     * 在一个事务 commit 或者 abort 时，就可以释放所有它持有的锁，并将自身从等待图中删除
+     * 尝试获取 uid 的锁，不等待，供乐观事务提交时使用
+     * 乐观事务只在提交时短暂持有锁，从不等待，不会出现在等待图中
      *
-     * @param xid
+     * @return uid 空闲或已经被 xid 持有时返回 true
      */
-    public void remove(long xid) {
-        lock.lock();
+    public boolean tryAcquire(long xid, long uid) {
+        Partition p = partition(uid);
+        p.lock.lock();
         try {
-            List<Long> l = x2u.get(xid);
-            if(l != null) {
-                while(l.size() > 0) {
-                    Long uid = l.remove(0);
-                    selectNewXID(uid); // 释放的资源可以被获取
-                }
+            long holder = p.u2x.get(uid, NONE);
+            if(holder == xid) {
+                return true;
             }
-            waitU.remove(xid);
-            x2u.remove(xid);
-            waitLock.remove(xid);
+            if(holder != NONE) {
+                return false;
+            }
+            p.u2x.put(uid, xid);
+            hold(xid, uid);
+            return true;
         } finally {
-            lock.unlock();
+            p.lock.unlock();
         }
     }
 
-    // 从等待队列中选择一个xid来占用uid
-    private void selectNewXID(long uid) {
-        u2x.remove(uid);
-        List<Long> l = wait.get(uid);
-        if(l == null) return;
-        assert l.size() > 0;
-        // 从 List 开头开始尝试解锁，还是个公平锁。
-        // 解锁时，将该 Lock 对象 unlock 即可，这样业务线程就获取到了锁，就可以继续执行了。
-        while(l.size() > 0) {
-            long xid = l.remove(0);
-            if(!waitLock.containsKey(xid)) {
+    /**
+     * 批量获取锁：按分区分组，每个分区只加一次锁，拿到其中所有空闲的 UID
+     * 被其他事务持有的 UID 不等待，返回给调用方逐个 acquire
+     *
+     * @return 需要等待的 UID
+     * @throws Exception WOUND_WAIT 下已被刺伤时抛出 DeadlockException
+     */
+    public List<Long> tryAcquire(long xid, long[] uids) throws Exception {
+        if(isWounded(xid)) {
+            throw Error.DeadlockException;
+        }
+        // 按分区计数排序
+        int[] start = new int[PARTITIONS + 1];
+        for(long uid : uids) {
+            start[partitionIndex(uid) + 1] ++;
+        }
+        for(int i = 0; i < PARTITIONS; i ++) {
+            start[i + 1] += start[i];
+        }
+        int[] pos = Arrays.copyOf(start, PARTITIONS);
+        long[] grouped = new long[uids.length];
+        for(long uid : uids) {
+            grouped[pos[partitionIndex(uid)] ++] = uid;
+        }
+
+        // 先建好持有列表，成为持有者之后就可能被刺伤
+        XidPartition xp = xidPartition(xid);
+        xp.lock.lock();
+        try {
+            held(xp, xid);
+        } finally {
+            xp.lock.unlock();
+        }
+        List<Long> busy = new ArrayList<>();
+        long[] granted = new long[uids.length];
+        int n = 0;
+        for(int i = 0; i < PARTITIONS; i ++) {
+            if(start[i] == start[i + 1]) {
                 continue;
-            } else {
-                u2x.put(uid, xid);
-                Lock lo = waitLock.remove(xid);
-                waitU.remove(xid);
-                lo.unlock();
-                break;
+            }
+            Partition p = partitions[i];
+            p.lock.lock();
+            try {
+                for(int j = start[i]; j < start[i + 1]; j ++) {
+                    long holder = p.u2x.get(grouped[j], NONE);
+                    if(holder == xid) {
+                        continue;
+                    }
+                    if(holder != NONE) {
+                        busy.add(grouped[j]);
+                        continue;
+                    }
+                    p.u2x.put(grouped[j], xid);
+                    granted[n ++] = grouped[j];
+                }
+            } finally {
+                p.lock.unlock();
             }
         }
-
-        if(l.size() == 0) wait.remove(uid);
+        if(n > 0) {
+            xp.lock.lock();
+            try {
+                Held held = held(xp, xid);
+                for(int i = 0; i < n; i ++) {
+                    held.add(granted[i]);
+                }
+            } finally {
+                xp.lock.unlock();
+            }
+        }
+        return busy;
     }
 
-    // 死锁检测
-    private boolean hasDeadLock() {
-        xidStamp = new HashMap<>();
-        stamp = 1;
-        for(long xid : x2u.keySet()) {
-            Integer s = xidStamp.get(xid);
-            if(s != null && s > 0) {
-                continue;
+    // 刺伤事务 xid：之后的加锁请求失败，正在等待则撤销等待并唤醒；已经释放全部锁的事务不再刺伤
+    private void wound(long xid) {
+        XidPartition xp = xidPartition(xid);
+        long uid;
+        xp.lock.lock();
+        try {
+            Held held = xp.x2u.get(xid);
+            if(held == null) {
+                return;
             }
-            stamp++;
-            if(dfs(xid)) {
-                return true;
+            held.wounded = true;
+            uid = xp.waitU.get(xid, NONE);
+        } finally {
+            xp.lock.unlock();
+        }
+        if(uid == NONE) {
+            return;
+        }
+        Partition p = partition(uid);
+        p.lock.lock();
+        try {
+            Waiter w = findWaiter(p, uid, xid);
+            if(w != null && cancel(p, w)) {
+                w.wounded = true;
+                w.granted.countDown();
             }
+        } finally {
+            p.lock.unlock();
+        }
+    }
+
+    // WOUND_WAIT 下事务 xid 是否已被刺伤
+    private boolean isWounded(long xid) {
+        if(policy != WOUND_WAIT) {
+            return false;
+        }
+        XidPartition xp = xidPartition(xid);
+        xp.lock.lock();
+        try {
+            Held held = xp.x2u.get(xid);
+            return held != null && held.wounded;
+        } finally {
+            xp.lock.unlock();
+        }
+    }
+
+    // 撤销等待，返回 false 表示已经拿到锁或已被撤销
+    private boolean cancel(Waiter w) {
+        Partition p = partition(w.uid);
+        p.lock.lock();
+        try {
+            return cancel(p, w);
+        } finally {
+            p.lock.unlock();
         }
-        return false;
     }
 
     /**
-     * 深度优先搜索
+     * 在一个事务 commit 或者 abort 时，就可以释放所有它持有的锁，并将自身从等待图中删除
      *
      * @param xid
-     * @return
      */
-    private boolean dfs(long xid) {
-        Integer stp = xidStamp.get(xid);
-        if(stp != null && stp == stamp) {
-            return true;
+    public void remove(long xid) {
+        XidPartition xp = xidPartition(xid);
+        long uid;
+        xp.lock.lock();
+        try {
+            uid = xp.waitU.get(xid, NONE);
+        } finally {
+            xp.lock.unlock();
+        }
+        if(uid != NONE) {
+            Partition p = partition(uid);
+            p.lock.lock();
+            try {
+                Waiter w = findWaiter(p, uid, xid);
+                if(w != null) {
+                    cancel(p, w);
+                }
+            } finally {
+                p.lock.unlock();
+            }
         }
-        if(stp != null && stp < stamp) {
+
+        Held held;
+        xp.lock.lock();
+        try {
+            held = xp.x2u.remove(xid);
+        } finally {
+            xp.lock.unlock();
+        }
+        // 从表中取走之后不会再有人修改
+        if(held == null) {
+            return;
+        }
+        for(int i = 0; i < held.size; i ++) {
+            Partition p = partition(held.uids[i]);
+            p.lock.lock();
+            try {
+                selectNewXID(p, held.uids[i]); // 释放的资源可以被获取
+            } finally {
+                p.lock.unlock();
+            }
+        }
+    }
+
+    // 从等待队列中选择一个xid来占用uid，调用方持有分区锁
+    private void selectNewXID(Partition p, long uid) {
+        p.u2x.remove(uid);
+        LinkedList<Waiter> q = p.wait.get(uid);
+        if(q == null) return;
+        // 从队列开头开始唤醒
+        Waiter w = q.pollFirst();
+        if(q.isEmpty()) p.wait.remove(uid);
+        if(w == null) return;
+
+        p.u2x.put(uid, w.xid);
+        XidPartition xp = xidPartition(w.xid);
+        xp.lock.lock();
+        try {
+            held(xp, w.xid).add(uid);
+            xp.waitU.remove(w.xid);
+        } finally {
+            xp.lock.unlock();
+        }
+        w.granted.countDown();
+    }
+
+    /**
+     * 死锁检测：锁住全部分区，从等待者出发沿等待链查找
+     * 检测到死锁时撤销该等待者的等待，同一个环只会撤销一个事务
+     *
+     * @param w 等待者
+     * @return 等待链回到 w 时返回 true
+     */
+    private boolean detectDeadLock(Waiter w) {
+        detectLock.lock();
+        // 按固定顺序加锁，其他线程同时只持有一个分区锁，不会互相等待
+        for(Partition p : partitions) {
+            p.lock.lock();
+        }
+        try {
+            if(w.granted.getCount() == 0) {
+                return false;
+            }
+            // 持有全部 UID 分区锁时等待关系不会变化，XID 分区锁只是为了读取
+            int waiters = 0;
+            for(XidPartition xp : xidPartitions) {
+                xp.lock.lock();
+                try {
+                    waiters += xp.waitU.size();
+                } finally {
+                    xp.lock.unlock();
+                }
+            }
+            long x = w.xid;
+            // 延迟检测时图中可能已经有不经过 w 的环，步数超过等待者数量就说明没有回到 w
+            for(int step = waiters; step >= 0; step --) {
+                long uid = waitingUid(x);
+                if(uid == NONE) {
+                    return false;
+                }
+                x = partition(uid).u2x.get(uid, NONE);
+                if(x == w.xid) {
+                    cancel(partition(w.uid), w);
+                    return true;
+                }
+            }
             return false;
+        } finally {
+            for(Partition p : partitions) {
+                p.lock.unlock();
+            }
+            detectLock.unlock();
         }
-        xidStamp.put(xid, stamp);
+    }
 
-        Long uid = waitU.get(xid);
-        if(uid == null) return false;
-        Long x = u2x.get(uid);
-        assert x != null;
-        return dfs(x);
+    // 撤销等待，调用方持有 w.uid 所在的分区锁
+    private boolean cancel(Partition p, Waiter w) {
+        LinkedList<Waiter> q = p.wait.get(w.uid);
+        if(q == null || !q.remove(w)) {
+            return false;
+        }
+        if(q.isEmpty()) p.wait.remove(w.uid);
+        XidPartition xp = xidPartition(w.xid);
+        xp.lock.lock();
+        try {
+            xp.waitU.remove(w.xid);
+        } finally {
+            xp.lock.unlock();
+        }
+        return true;
     }
 
-    private void removeFromList(Map<Long, List<Long>> listMap, long uid0, long uid1) {
-        List<Long> l = listMap.get(uid0);
-        if(l == null) return;
-        Iterator<Long> i = l.iterator();
-        while(i.hasNext()) {
-            long e = i.next();
-            if(e == uid1) {
-                i.remove();
-                break;
+    // 在 uid 的等待队列中查找 xid，调用方持有 uid 所在的分区锁
+    private static Waiter findWaiter(Partition p, long uid, long xid) {
+        LinkedList<Waiter> q = p.wait.get(uid);
+        if(q == null) return null;
+        for(Waiter w : q) {
+            if(w.xid == xid) {
+                return w;
             }
         }
-        if(l.size() == 0) {
-            listMap.remove(uid0);
+        return null;
+    }
+
+    // xid 正在等待的 UID，不在等待时返回 NONE
+    private long waitingUid(long xid) {
+        XidPartition xp = xidPartition(xid);
+        xp.lock.lock();
+        try {
+            return xp.waitU.get(xid, NONE);
+        } finally {
+            xp.lock.unlock();
         }
     }
 
-    private void putIntoList(Map<Long, List<Long>> listMap, long uid0, long uid1) {
-        if(!listMap.containsKey(uid0)) {
-            listMap.put(uid0, new ArrayList<>());
+    private void hold(long xid, long uid) {
+        XidPartition xp = xidPartition(xid);
+        xp.lock.lock();
+        try {
+            held(xp, xid).add(uid);
+        } finally {
+            xp.lock.unlock();
         }
-        listMap.get(uid0).add(0, uid1);
     }
 
-    private boolean isInList(Map<Long, List<Long>> listMap, long uid0, long uid1) {
-        List<Long> l = listMap.get(uid0);
-        if(l == null) return false;
-        Iterator<Long> i = l.iterator();
-        while(i.hasNext()) {
-            long e = i.next();
-            if(e == uid1) {
-                return true;
-            }
+    // xid 的持有列表，不存在时创建，调用方持有 xp 的锁
+    private static Held held(XidPartition xp, long xid) {
+        Held held = xp.x2u.get(xid);
+        if(held == null) {
+            held = new Held();
+            xp.x2u.put(xid, held);
         }
-        return false;
+        return held;
+    }
+
+    private XidPartition xidPartition(long xid) {
+        return xidPartitions[partitionIndex(xid)];
+    }
+
+    private Partition partition(long uid) {
+        return partitions[partitionIndex(uid)];
+    }
+
+    private static int partitionIndex(long uid) {
+        long h = uid * 0x9E3779B97F4A7C15L;
+        return (int) (h >>> 32) & (PARTITIONS - 1);
     }
 
 }
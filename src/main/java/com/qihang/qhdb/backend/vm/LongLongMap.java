@@ -0,0 +1,121 @@
+package com.qihang.qhdb.backend.vm;
+
+/**
+ * @Author: zhqihang
+ * @Date: 2024/03/16
+ * @Project: qhdb
+ * @Description: long -> long 的开放寻址哈希表
+ *
+ * 供 LockTable 记录 持有者 / 等待关系，避免 HashMap<Long, Long> 每次访问的装箱和节点分配。
+ * 线性探测，删除时向前搬移后续元素，不留墓碑；不是线程安全的，由调用方加锁。
+ */
+class LongLongMap {
+
+    private static final long EMPTY = 0;   // 空槽的 key，key 为 0 的元素单独保存
+
+    private long[] keys;
+    private long[] values;
+    private int size;
+    private boolean hasZero;
+    private long zeroValue;
+
+    LongLongMap() {
+        keys = new long[16];
+        values = new long[16];
+    }
+
+    int size() {
+        return hasZero ? size + 1 : size;
+    }
+
+    boolean containsKey(long key) {
+        if(key == EMPTY) {
+            return hasZero;
+        }
+        return keys[indexOf(key)] == key;
+    }
+
+    // 不存在时返回 missing
+    long get(long key, long missing) {
+        if(key == EMPTY) {
+            return hasZero ? zeroValue : missing;
+        }
+        int i = indexOf(key);
+        return keys[i] == key ? values[i] : missing;
+    }
+
+    void put(long key, long value) {
+        if(key == EMPTY) {
+            hasZero = true;
+            zeroValue = value;
+            return;
+        }
+        int i = indexOf(key);
+        if(keys[i] == key) {
+            values[i] = value;
+            return;
+        }
+        keys[i] = key;
+        values[i] = value;
+        if(++ size * 2 > keys.length) {
+            resize();
+        }
+    }
+
+    void remove(long key) {
+        if(key == EMPTY) {
+            hasZero = false;
+            return;
+        }
+        int mask = keys.length - 1;
+        int i = indexOf(key);
+        if(keys[i] != key) {
+            return;
+        }
+        // 把探测链上后续的元素往前搬，保证查找不会在空槽处提前结束
+        int j = i;
+        while(true) {
+            j = (j + 1) & mask;
+            if(keys[j] == EMPTY) {
+                break;
+            }
+            int home = hash(keys[j]) & mask;
+            if(((j - home) & mask) >= ((j - i) & mask)) {
+                keys[i] = keys[j];
+                values[i] = values[j];
+                i = j;
+            }
+        }
+        keys[i] = EMPTY;
+        size --;
+    }
+
+    // key 所在的槽，不存在时为应插入的空槽
+    private int indexOf(long key) {
+        int mask = keys.length - 1;
+        int i = hash(key) & mask;
+        while(keys[i] != EMPTY && keys[i] != key) {
+            i = (i + 1) & mask;
+        }
+        return i;
+    }
+
+    private void resize() {
+        long[] oldKeys = keys;
+        long[] oldValues = values;
+        keys = new long[oldKeys.length * 2];
+        values = new long[oldKeys.length * 2];
+        for(int i = 0; i < oldKeys.length; i ++) {
+            if(oldKeys[i] != EMPTY) {
+                int j = indexOf(oldKeys[i]);
+                keys[j] = oldKeys[i];
+                values[j] = oldValues[i];
+            }
+        }
+    }
+
+    private static int hash(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+}
@@ -0,0 +1,115 @@
+package com.qihang.qhdb.backend.vm;
+
+/**
+ * @Author: zhqihang
+ * @Date: 2024/03/16
+ * @Project: qhdb
+ * @Description: long -> 对象 的开放寻址哈希表
+ *
+ * 与 LongLongMap 相同的线性探测和删除方式，供 LockTable 按 XID 保存事务的加锁状态，
+ * 避免 Map<Long, V> 每次访问的装箱。不是线程安全的，由调用方加锁。
+ */
+class LongObjectMap<V> {
+
+    private static final long EMPTY = 0;   // 空槽的 key，key 为 0 的元素单独保存
+
+    private long[] keys;
+    private Object[] values;
+    private int size;
+    private V zeroValue;
+
+    LongObjectMap() {
+        keys = new long[16];
+        values = new Object[16];
+    }
+
+    // 不存在时返回 null
+    @SuppressWarnings("unchecked")
+    V get(long key) {
+        if(key == EMPTY) {
+            return zeroValue;
+        }
+        int i = indexOf(key);
+        return keys[i] == key ? (V) values[i] : null;
+    }
+
+    void put(long key, V value) {
+        if(key == EMPTY) {
+            zeroValue = value;
+            return;
+        }
+        int i = indexOf(key);
+        if(keys[i] == key) {
+            values[i] = value;
+            return;
+        }
+        keys[i] = key;
+        values[i] = value;
+        if(++ size * 2 > keys.length) {
+            resize();
+        }
+    }
+
+    // 返回被删除的值，不存在时返回 null
+    @SuppressWarnings("unchecked")
+    V remove(long key) {
+        if(key == EMPTY) {
+            V old = zeroValue;
+            zeroValue = null;
+            return old;
+        }
+        int mask = keys.length - 1;
+        int i = indexOf(key);
+        if(keys[i] != key) {
+            return null;
+        }
+        V old = (V) values[i];
+        // 把探测链上后续的元素往前搬，保证查找不会在空槽处提前结束
+        int j = i;
+        while(true) {
+            j = (j + 1) & mask;
+            if(keys[j] == EMPTY) {
+                break;
+            }
+            int home = hash(keys[j]) & mask;
+            if(((j - home) & mask) >= ((j - i) & mask)) {
+                keys[i] = keys[j];
+                values[i] = values[j];
+                i = j;
+            }
+        }
+        keys[i] = EMPTY;
+        values[i] = null;
+        size --;
+        return old;
+    }
+
+    // key 所在的槽，不存在时为应插入的空槽
+    private int indexOf(long key) {
+        int mask = keys.length - 1;
+        int i = hash(key) & mask;
+        while(keys[i] != EMPTY && keys[i] != key) {
+            i = (i + 1) & mask;
+        }
+        return i;
+    }
+
+    private void resize() {
+        long[] oldKeys = keys;
+        Object[] oldValues = values;
+        keys = new long[oldKeys.length * 2];
+        values = new Object[oldKeys.length * 2];
+        for(int i = 0; i < oldKeys.length; i ++) {
+            if(oldKeys[i] != EMPTY) {
+                int j = indexOf(oldKeys[i]);
+                keys[j] = oldKeys[i];
+                values[j] = oldValues[i];
+            }
+        }
+    }
+
+    private static int hash(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+}
@@ -1,9 +1,7 @@
 package com.qihang.qhdb.backend.vm;
 
-import com.qihang.qhdb.backend.tm.TransactionManagerImpl;
-
-import java.util.HashMap;
-import java.util.Map;
+import java.util.List;
+import java.util.Set;
 
 // vm对其他模块提供的一个抽象的事务数据结构 以保存快照数据
 
@@ -11,30 +9,22 @@ import java.util.Map;
 public class Transaction {
     public long xid;                    // 事务id
     public int level;                   // 事务隔离等级，0：读已提交；1：可重复读
-    public Map<Long, Boolean> snapshot; // 活跃事务的快照，用于实现可重复读
+    public long snapshot;               // 开启时已发布的提交序号，用于实现可重复读
     public Exception err;               // 事务的错误
     public boolean autoAborted;         // 自动回滚标记
+    public boolean asyncCommit;         // 异步提交，提交时不等待日志落盘
+    public boolean readOnly;            // 只读事务，xid 为负数，没有在 TM 中分配
+    public long nextXid;                // 只读事务开启时的下一个 XID，冻结水位不越过它
+    public boolean optimistic;          // 乐观事务，删除先记录在写集合中，提交时验证通过才写入
+    public Set<Long> writeSet;          // 乐观事务要删除的记录
+    public List<Long> readSet;          // 乐观事务读到的记录
 
 
-    public static Transaction newTransaction(long xid, int level, Map<Long, Transaction> active) {
+    public static Transaction newTransaction(long xid, int level, long snapshot) {
         Transaction t = new Transaction();
         t.xid = xid;
         t.level = level;
-        // 只有可重复读才需要 活跃事务列表
-        if(level != 0) {
-            t.snapshot = new HashMap<>();
-            for(Long x : active.keySet()) {
-                t.snapshot.put(x, true);
-            }
-        }
+        t.snapshot = snapshot;
         return t;
     }
-
-    // 判断xid是否是活跃事务
-    public boolean isInSnapshot(long xid) {
-        if(xid == TransactionManagerImpl.SUPER_XID) {
-            return false;
-        }
-        return snapshot.containsKey(xid);
-    }
 }
@@ -3,6 +3,8 @@ package com.qihang.qhdb.backend.vm;
 import com.qihang.qhdb.backend.dm.DataManager;
 import com.qihang.qhdb.backend.tm.TransactionManager;
 
+import java.util.List;
+
 /**
  * @Author: zhqihang
  * @Date: 2024/03/14
@@ -15,14 +17,32 @@ public interface VersionManager {
     byte[] read(long xid, long uid) throws Exception;       // 保证可见性的条件下，读取数据DataItem
     long insert(long xid, byte[] data) throws Exception;    // 通过事务xid插入数据
     boolean delete(long xid, long uid) throws Exception;    // 通过事务xid删除数据
+    List<Long> deleteBatch(long xid, List<Long> uids) throws Exception; // 批量删除，返回删除成功的数据
 
     // 事务管理
     long begin(int level);                                  // 事务开启隔离级别
+    long begin(int level, boolean asyncCommit);             // asyncCommit: 提交时不等待日志落盘
+    long begin(int level, boolean asyncCommit, boolean optimistic); // optimistic: 不加行锁，提交时验证
+    long beginReadOnly(int level);                          // 只读事务，不分配 XID，提交和回滚不写日志
     void commit(long xid) throws Exception;                 // 提交事务
     void abort(long xid);                                   // 撤销事务
 
+    // 冻结
+    long freezeHorizon();                                   // 冻结水位：之前的事务都已结束，且不在任何活跃事务的快照中
+    void freeze(long uid, long horizon) throws Exception;   // 冻结一条记录
+    void endFreeze(long horizon);                           // 所有记录冻结后推进 TM 的冻结水位
+
+    // 清理
+    byte[] deadData(long uid, long horizon) throws Exception; // 记录对所有事务都不可见时返回其数据，否则返回 null，同时记录所在页面是否全部可见
+    void vacuum(long uid) throws Exception;                 // 清理一条记录，调用方已删除指向它的索引项
+    void endVacuum(long horizon, boolean cycleDone);        // 一批清理结束，复用已经不会再被访问的空间；cycleDone 表示所有表都已扫描完
+
     public static VersionManager newVersionManager(TransactionManager tm, DataManager dm) {
         return new VersionManagerImpl(tm, dm);
     }
 
+    public static VersionManager newVersionManager(TransactionManager tm, DataManager dm, int lockPolicy, long lockWaitTimeout) {
+        return new VersionManagerImpl(tm, dm, lockPolicy, lockWaitTimeout);
+    }
+
 }
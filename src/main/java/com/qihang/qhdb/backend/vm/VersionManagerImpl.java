@@ -2,15 +2,26 @@ package com.qihang.qhdb.backend.vm;
 
 import com.qihang.qhdb.backend.common.AbstractCache;
 import com.qihang.qhdb.backend.dm.DataManager;
+import com.qihang.qhdb.backend.dm.dataItem.DataItem;
 import com.qihang.qhdb.backend.tm.TransactionManager;
 import com.qihang.qhdb.backend.tm.TransactionManagerImpl;
 import com.qihang.qhdb.backend.utils.Panic;
 import com.qihang.qhdb.common.Error;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * @Author: zhqihang
@@ -20,23 +31,79 @@ import java.util.concurrent.locks.ReentrantLock;
  *
  * 设计为 Entry 的缓存，需要继承 AbstractCache<Entry>
  *
+ * 异步提交的事务在 commit 时写入提交日志，不等待落盘就在 TM 中提交（commitAsync）、离开活跃事务并释放锁，
+ * 同一会话之后的语句和其他事务马上能看到它的修改。后台线程每隔 ASYNC_COMMIT_INTERVAL 等待整批事务的
+ * 提交记录落盘，再把状态写入 XID 文件（persistCommit）。崩溃时最多丢失这一小段时间内提交的事务，
+ * 日志按顺序落盘，丢失的只是日志末尾的提交，之后依赖它们的提交也一并丢失。
+ * 依赖持久性的操作要等提交记录落盘：落盘前不写已提交的提示位，冻结水位不越过这些事务。
+ *
+ * 清理的记录在 DM 中标记为 FREE 后空间不能马上复用：清理之前开启的事务可能已经从索引中取到了它的 UID。
+ * 每批清理结束时记下当时的下一个 XID，之后水位越过它，才把这些空间交给 DM 复用。
+ * 清理时顺便检查每条记录是否对所有事务可见，所有表都扫描完一个周期后把记录都可见的页面标记为全部可见，
+ * 读取全部可见页面上的记录时不再判断可见性。
+ *
+ * 只读事务不在 TM 中分配 XID，只取一个提交序号作为快照，用从 -2 开始递减的负数标识，
+ * 不会与真实的 XID 和 FROZEN_XID 冲突；提交和回滚只需要离开活跃事务，不写日志也不修改 XID 文件。
+ * 它仍然留在活跃事务中，冻结水位不越过它开启时的下一个 XID，它的快照也参与计算最老快照。
+ *
+ * 乐观事务删除时不获取行锁，只把 UID 记入写集合，读到的记录记入读集合。提交时在 validateLock 下验证：
+ * 对写集合中的记录尝试加行锁（不等待），再检查读写过的记录都没有被其他事务删除，通过后才写入 XMAX，
+ * 否则自动回滚。写入的 XMAX 指向提交中的事务，之后验证的事务会看到冲突，所以验证只需要互斥到写入完成。
+ * 插入的新记录在提交前本来就对其他事务不可见，仍然直接写入。
+ *
  */
 public class VersionManagerImpl extends AbstractCache<Entry> implements VersionManager {
 
     TransactionManager tm; // 事务管理器
     DataManager dm; // 数据管理器
-    Map<Long, Transaction> activeTransaction; // 活跃事务
-    Lock lock; // 锁
+    Map<Long, Transaction> activeTransaction; // 活跃事务，并发访问不加锁
+    ReadWriteLock beginLock; // 开启事务时加读锁，计算冻结水位时加写锁
+    Lock validateLock;       // 乐观事务提交时的验证和写入互斥进行
     LockTable lt;  // 死锁检测表
 
+    // 异步提交的刷盘间隔
+    private static final long ASYNC_COMMIT_INTERVAL = 10;
+    BlockingQueue<Long> asyncCommits; // 等待完成的异步提交事务
+    Map<Long, Long> pendingCommits;   // 提交记录还没有落盘的异步提交事务 -> 提交记录的 LSN
+    AtomicLong maxXid;      // 开启过的最大事务
+    AtomicLong readOnlyXid; // 上一个只读事务的标识
+    long lastHorizon = 1;   // 上一次冻结的水位，只由冻结线程访问
+
+    // 以下只由清理线程访问
+    List<Long> vacuumed;    // 本轮清理的记录
+    List<Long> reclaiming;  // 之前清理、等待复用的记录
+    long reclaimAfter;      // 水位越过它后 reclaiming 可以复用
+    Map<Integer, Boolean> visiblePages; // 本周期清理中，页面上的记录是否都对所有事务可见
+    long visibleHorizon;    // 本周期各批清理中最小的水位
+
     public VersionManagerImpl(TransactionManager tm, DataManager dm) {
+        this(tm, dm, LockTable.DETECT, 0);
+    }
+
+    /**
+     * @param lockPolicy 死锁处理方式，见 LockTable
+     * @param lockWaitTimeout 锁等待超时（毫秒），0 表示一直等待
+     */
+    public VersionManagerImpl(TransactionManager tm, DataManager dm, int lockPolicy, long lockWaitTimeout) {
         super(0);
         this.tm = tm;
         this.dm = dm;
-        this.activeTransaction = new HashMap<>();
-        activeTransaction.put(TransactionManagerImpl.SUPER_XID, Transaction.newTransaction(TransactionManagerImpl.SUPER_XID, 0, null));
-        this.lock = new ReentrantLock();
-        this.lt = new LockTable();
+        this.activeTransaction = new ConcurrentHashMap<>();
+        activeTransaction.put(TransactionManagerImpl.SUPER_XID, Transaction.newTransaction(TransactionManagerImpl.SUPER_XID, 0, 0));
+        this.beginLock = new ReentrantReadWriteLock();
+        this.validateLock = new ReentrantLock();
+        this.maxXid = new AtomicLong();
+        this.readOnlyXid = new AtomicLong(TransactionManagerImpl.FROZEN_XID);
+        this.lt = new LockTable(lockPolicy, lockWaitTimeout);
+        this.asyncCommits = new LinkedBlockingQueue<>();
+        this.pendingCommits = new ConcurrentHashMap<>();
+        this.vacuumed = new ArrayList<>();
+        this.reclaiming = new ArrayList<>();
+        this.visiblePages = new HashMap<>();
+        this.visibleHorizon = Long.MAX_VALUE;
+        Thread committer = new Thread(this::asyncCommitLoop, "async-committer");
+        committer.setDaemon(true);
+        committer.start();
     }
 
     /**
@@ -49,9 +116,7 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
      */
     @Override
     public byte[] read(long xid, long uid) throws Exception {
-        lock.lock();
         Transaction t = activeTransaction.get(xid);
-        lock.unlock();
 
         if(t.err != null) {
             throw t.err;
@@ -68,7 +133,15 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
             }
         }
         try {
-            if(Visibility.isVisible(tm, t, entry)) {
+            // 全部可见的页面上不需要判断可见性
+            if(dm.isAllVisible(pgno(uid)) || Visibility.isVisible(tm, t, entry)) {
+                if(t.optimistic) {
+                    // 自己要删除的记录已经不可见
+                    if(t.writeSet.contains(uid)) {
+                        return null;
+                    }
+                    t.readSet.add(uid);
+                }
                 return entry.data();
             } else {
                 return null;
@@ -88,13 +161,14 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
      */
     @Override
     public long insert(long xid, byte[] data) throws Exception {
-        lock.lock();
         Transaction t = activeTransaction.get(xid);
-        lock.unlock();
 
         if(t.err != null) {
             throw t.err;
         }
+        if(t.readOnly) {
+            throw Error.ReadOnlyTransactionException;
+        }
 
         // 包裹成entry交给dm处理
         byte[] raw = Entry.wrapEntryRaw(xid, data);
@@ -116,13 +190,14 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
      */
     @Override
     public boolean delete(long xid, long uid) throws Exception {
-        lock.lock();
         Transaction t = activeTransaction.get(xid);
-        lock.unlock();
 
         if(t.err != null) {
             throw t.err;
         }
+        if(t.readOnly) {
+            throw Error.ReadOnlyTransactionException;
+        }
         Entry entry = null;
         try {
             entry = super.get(uid);
@@ -138,36 +213,152 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
             if(!Visibility.isVisible(tm, t, entry)) {
                 return false;
             }
-            Lock l = null;
-            try {
-                l = lt.add(xid, uid);                       // 添加到死锁检测
-            } catch(Exception e) {
-                t.err = Error.ConcurrentUpdateException;
-                internAbort(xid, true);         // 自动回滚
-                t.autoAborted = true;
-                throw t.err;
-            }
-            if(l != null) {
-                l.lock();
-                l.unlock();
+            if(t.optimistic) {
+                // 不加锁，提交时验证
+                if(Visibility.isVersionSkip(tm, t, entry)) {
+                    t.err = Error.ConcurrentUpdateException;
+                    internAbort(xid, true);
+                    t.autoAborted = true;
+                    throw t.err;
+                }
+                return t.writeSet.add(uid);
             }
+            acquire(t, uid);                    // 获取行锁，需要时阻塞等待
 
             if(entry.getXmax() == xid) {
                 return false;
             }
             // 版本跳跃判断
-            if(Visibility.isVersionSkip(tm, t, entry)) {
+            checkVersionSkip(t, entry);
+            // 删除操作
+            entry.setXmax(xid);
+            return true;
+
+        } finally {
+            entry.release();
+        }
+    }
+
+    /**
+     * 批量删除：按 UID 排序后同一页面的记录相邻，
+     * 先批量获取空闲的行锁，其余逐个等待，全部检查通过后每个页面只写一条日志
+     *
+     * @param xid
+     * @param uids
+     * @return 删除成功的 UID
+     * @throws Exception
+     */
+    @Override
+    public List<Long> deleteBatch(long xid, List<Long> uids) throws Exception {
+        Transaction t = activeTransaction.get(xid);
+
+        if(t.err != null) {
+            throw t.err;
+        }
+        if(t.readOnly) {
+            throw Error.ReadOnlyTransactionException;
+        }
+        List<Long> deleted = new ArrayList<>();
+        // 乐观事务的删除只记录在写集合中
+        if(t.optimistic) {
+            for(long uid : uids) {
+                if(delete(xid, uid)) {
+                    deleted.add(uid);
+                }
+            }
+            return deleted;
+        }
+
+        long[] sorted = new long[uids.size()];
+        for(int i = 0; i < sorted.length; i ++) {
+            sorted[i] = uids.get(i);
+        }
+        Arrays.sort(sorted);
+
+        List<Entry> entries = new ArrayList<>();
+        try {
+            for(int i = 0; i < sorted.length; i ++) {
+                if(i > 0 && sorted[i] == sorted[i-1]) {
+                    continue;
+                }
+                Entry entry = null;
+                try {
+                    entry = super.get(sorted[i]);
+                } catch(Exception e) {
+                    if(e == Error.NullEntryException) {
+                        continue;
+                    } else {
+                        throw e;
+                    }
+                }
+                if(Visibility.isVisible(tm, t, entry)) {
+                    entries.add(entry);
+                } else {
+                    entry.release();
+                }
+            }
+
+            long[] visible = new long[entries.size()];
+            for(int i = 0; i < visible.length; i ++) {
+                visible[i] = entries.get(i).getUid();
+            }
+            List<Long> busy;
+            try {
+                busy = lt.tryAcquire(xid, visible);
+            } catch(Exception e) {
                 t.err = Error.ConcurrentUpdateException;
                 internAbort(xid, true);
                 t.autoAborted = true;
                 throw t.err;
             }
-            // 删除操作
-            entry.setXmax(xid);
-            return true;
+            for(long uid : busy) {
+                acquire(t, uid);
+            }
 
+            List<Entry> toDelete = new ArrayList<>(entries.size());
+            for(Entry entry : entries) {
+                if(entry.getXmax() == xid) {
+                    continue;
+                }
+                checkVersionSkip(t, entry);
+                toDelete.add(entry);
+                deleted.add(entry.getUid());
+            }
+            // 按页面分组写入
+            int from = 0;
+            for(int i = 1; i <= toDelete.size(); i ++) {
+                if(i == toDelete.size() || pgno(toDelete.get(i).getUid()) != pgno(toDelete.get(from).getUid())) {
+                    Entry.setXmax(toDelete.subList(from, i), xid, dm);
+                    from = i;
+                }
+            }
+            return deleted;
         } finally {
-            entry.release();
+            for(Entry entry : entries) {
+                entry.release();
+            }
+        }
+    }
+
+    // 获取行锁，需要时阻塞等待，检测到死锁或超时时自动回滚并抛出异常
+    private void acquire(Transaction t, long uid) throws Exception {
+        try {
+            lt.acquire(t.xid, uid);
+        } catch(Exception e) {
+            t.err = e == Error.LockWaitTimeoutException ? e : Error.ConcurrentUpdateException;
+            internAbort(t.xid, true);         // 自动回滚
+            t.autoAborted = true;
+            throw t.err;
+        }
+    }
+
+    // 出现版本跳跃时自动回滚并抛出异常
+    private void checkVersionSkip(Transaction t, Entry entry) throws Exception {
+        if(Visibility.isVersionSkip(tm, t, entry)) {
+            t.err = Error.ConcurrentUpdateException;
+            internAbort(t.xid, true);
+            t.autoAborted = true;
+            throw t.err;
         }
     }
 
@@ -179,17 +370,73 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
      */
     @Override
     public long begin(int level) {
-        lock.lock();
+        return begin(level, false);
+    }
+
+    /**
+     * 开启一个事务
+     *
+     * @param level 隔离等级
+     * @param asyncCommit 是否异步提交
+     * @return
+     */
+    @Override
+    public long begin(int level, boolean asyncCommit) {
+        return begin(level, asyncCommit, false);
+    }
+
+    /**
+     * 开启一个事务
+     *
+     * @param level 隔离等级
+     * @param asyncCommit 是否异步提交
+     * @param optimistic 是否乐观事务
+     * @return
+     */
+    @Override
+    public long begin(int level, boolean asyncCommit, boolean optimistic) {
+        // 读锁之间不互斥，只用于保证计算冻结水位时，没有已分配 XID 但还未加入活跃事务的事务
+        beginLock.readLock().lock();
         try {
             // 开启一个新事务
             long xid = tm.begin();
+            maxXid.accumulateAndGet(xid, Math::max);
             // 初始化事务的结构
-            Transaction t = Transaction.newTransaction(xid, level, activeTransaction);
+            // 快照只是一个提交序号，与活跃事务数无关
+            Transaction t = Transaction.newTransaction(xid, level, tm.csn());
+            t.asyncCommit = asyncCommit;
+            if(optimistic) {
+                t.optimistic = true;
+                t.writeSet = new HashSet<>();
+                t.readSet = new ArrayList<>();
+            }
             // 将其存放在 activeTransaction 中，用于检查和快照使用
             activeTransaction.put(xid, t);
             return xid;
         } finally {
-            lock.unlock();
+            beginLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 开启一个只读事务，只记录快照，不访问磁盘
+     *
+     * @param level 隔离等级
+     * @return 只读事务的标识，是一个负数
+     */
+    @Override
+    public long beginReadOnly(int level) {
+        // 与 begin 相同，保证计算冻结水位时能看到这个事务
+        beginLock.readLock().lock();
+        try {
+            long xid = readOnlyXid.decrementAndGet();
+            Transaction t = Transaction.newTransaction(xid, level, tm.csn());
+            t.readOnly = true;
+            t.nextXid = maxXid.get() + 1;
+            activeTransaction.put(xid, t);
+            return xid;
+        } finally {
+            beginLock.readLock().unlock();
         }
     }
 
@@ -201,9 +448,7 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
      */
     @Override
     public void commit(long xid) throws Exception {
-        lock.lock();
         Transaction t = activeTransaction.get(xid);
-        lock.unlock();
 
         try {
             if(t.err != null) {
@@ -215,12 +460,246 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
             Panic.panic(n);
         }
 
-        lock.lock();
-        activeTransaction.remove(xid);
-        lock.unlock();
+        if(t.readOnly) {
+            activeTransaction.remove(xid);
+            return;
+        }
+        if(t.optimistic && !validate(t)) {
+            t.err = Error.ConcurrentUpdateException;
+            internAbort(xid, true);
+            t.autoAborted = true;
+            throw t.err;
+        }
+        if(t.asyncCommit) {
+            // 不等待落盘，由后台线程写入 XID 文件
+            // 先记入 pendingCommits 再离开活跃事务，计算冻结水位时总能看到它
+            pendingCommits.put(xid, dm.logCommit(xid));
+            tm.commitAsync(xid);
+            activeTransaction.remove(xid);
+            lt.remove(xid);
+            asyncCommits.add(xid);
+            return;
+        }
 
-        lt.remove(xid);
+        dm.logCommit(xid);
+        dm.flushLog();  // 提交记录落盘即提交完成，XID 文件延迟写入
         tm.commit(xid);
+
+        // 提交完成后才离开活跃事务，冻结水位不会越过提交中的事务
+        activeTransaction.remove(xid);
+        // 最后释放行锁：等待者拿到锁时 XMAX 已经是已提交状态，版本跳跃检查能看到这次修改
+        lt.remove(xid);
+    }
+
+    /**
+     * 乐观事务提交前的验证，通过后写入写集合中记录的 XMAX
+     * 写集合的行锁在提交或回滚时与其他锁一起释放
+     *
+     * @return 验证失败返回 false
+     */
+    private boolean validate(Transaction t) throws Exception {
+        validateLock.lock();
+        try {
+            for(long uid : t.writeSet) {
+                if(!lt.tryAcquire(t.xid, uid) || isModified(t, uid)) {
+                    return false;
+                }
+            }
+            for(long uid : t.readSet) {
+                if(isModified(t, uid)) {
+                    return false;
+                }
+            }
+            for(long uid : t.writeSet) {
+                Entry entry = super.get(uid);
+                try {
+                    entry.setXmax(t.xid);
+                } finally {
+                    entry.release();
+                }
+            }
+            return true;
+        } finally {
+            validateLock.unlock();
+        }
+    }
+
+    // 记录是否已被其他事务删除，已经被清理的记录也算作删除
+    private boolean isModified(Transaction t, long uid) throws Exception {
+        Entry entry = null;
+        try {
+            entry = super.get(uid);
+        } catch(Exception e) {
+            if(e == Error.NullEntryException) {
+                return true;
+            } else {
+                throw e;
+            }
+        }
+        try {
+            return Visibility.isModified(tm, t, entry);
+        } finally {
+            entry.release();
+        }
+    }
+
+    /**
+     * 冻结水位先取最小的活跃事务或提交记录未落盘的事务，没有时取下一个将要开启的事务，水位之前的事务都已持久地结束；
+     * 再降到第一个提交晚于最老快照的事务，保证水位之前的提交对所有事务都可见
+     */
+    @Override
+    public long freezeHorizon() {
+        long horizon, minSnapshot;
+        beginLock.writeLock().lock();
+        try {
+            horizon = maxXid.get() + 1;
+            minSnapshot = tm.csn();
+            for(Transaction t : activeTransaction.values()) {
+                if(t.xid == TransactionManagerImpl.SUPER_XID) {
+                    continue;
+                }
+                horizon = Math.min(horizon, t.readOnly ? t.nextXid : t.xid);
+                if(t.level != 0) {
+                    minSnapshot = Math.min(minSnapshot, t.snapshot);
+                }
+            }
+            // 提交记录还没有落盘的事务崩溃后可能被撤销，不能冻结
+            for(long xid : pendingCommits.keySet()) {
+                horizon = Math.min(horizon, xid);
+            }
+        } finally {
+            beginLock.writeLock().unlock();
+        }
+        for(long x = lastHorizon; x < horizon; x ++) {
+            if(tm.isCommitted(x) && tm.getCSN(x) > minSnapshot) {
+                return x;
+            }
+        }
+        return horizon;
+    }
+
+    @Override
+    public void freeze(long uid, long horizon) throws Exception {
+        Entry entry = null;
+        try {
+            entry = super.get(uid);
+        } catch(Exception e) {
+            if(e == Error.NullEntryException) {
+                return;
+            } else {
+                throw e;
+            }
+        }
+        try {
+            entry.freeze(tm, horizon);
+        } finally {
+            entry.release();
+        }
+    }
+
+    @Override
+    public void endFreeze(long horizon) {
+        dm.flushLog();  // 冻结的修改落盘之后才能推进水位
+        tm.freeze(horizon);
+        lastHorizon = Math.max(lastHorizon, horizon);
+    }
+
+    @Override
+    public byte[] deadData(long uid, long horizon) throws Exception {
+        Entry entry = null;
+        try {
+            entry = super.get(uid);
+        } catch(Exception e) {
+            if(e == Error.NullEntryException) {
+                return undoneData(uid);
+            } else {
+                throw e;
+            }
+        }
+        try {
+            if(Visibility.isDead(tm, entry, horizon)) {
+                return entry.data();
+            }
+            visiblePages.merge(pgno(uid), Visibility.isAllVisible(tm, entry, horizon), Boolean::logicalAnd);
+            return null;
+        } finally {
+            entry.release();
+        }
+    }
+
+    // 恢复时被撤销的插入，创建它的事务已回滚，记录从未可见，不经过 Entry 缓存直接读出数据
+    private byte[] undoneData(long uid) throws Exception {
+        DataItem di = dm.readInvalid(uid);
+        if(di == null) {
+            return null;
+        }
+        Entry entry = Entry.newEntry(this, di, uid);
+        try {
+            return entry.data();
+        } finally {
+            entry.remove();
+        }
+    }
+
+    @Override
+    public void vacuum(long uid) throws Exception {
+        dm.free(uid);
+        vacuumed.add(uid);
+    }
+
+    @Override
+    public void endVacuum(long horizon, boolean cycleDone) {
+        // 只读事务的 nextXid 可能等于 reclaimAfter，水位必须严格越过它
+        if(!reclaiming.isEmpty() && horizon > reclaimAfter) {
+            dm.reclaim(reclaiming);
+            reclaiming.clear();
+        }
+        reclaiming.addAll(vacuumed);
+        vacuumed.clear();
+        reclaimAfter = maxXid.get() + 1;
+
+        // 一个页面上的记录可能分散在多批、多张表中，整个周期都检查过之后才能设置全部可见，
+        // 按最早一批的水位设置，之后修改过页面的事务不小于它，页面不会被误设
+        visibleHorizon = Math.min(visibleHorizon, horizon);
+        if(!cycleDone) {
+            return;
+        }
+        for(Map.Entry<Integer, Boolean> e : visiblePages.entrySet()) {
+            if(e.getValue()) {
+                dm.setAllVisible(e.getKey(), visibleHorizon);
+            }
+        }
+        visiblePages.clear();
+        visibleHorizon = Long.MAX_VALUE;
+    }
+
+    private static int pgno(long uid) {
+        return (int)(uid >>> 32);
+    }
+
+    // 后台线程：等待整批异步提交的提交记录落盘，再写入 XID 文件
+    private void asyncCommitLoop() {
+        List<Long> batch = new ArrayList<>();
+        while(true) {
+            try {
+                batch.add(asyncCommits.take());
+                Thread.sleep(ASYNC_COMMIT_INTERVAL);
+            } catch(InterruptedException e) {
+                Panic.panic(e);
+            }
+            asyncCommits.drainTo(batch);
+
+            long lsn = 0;
+            for(long xid : batch) {
+                lsn = Math.max(lsn, pendingCommits.get(xid));
+            }
+            dm.flushLog(lsn);  // 一次刷盘覆盖整批事务的提交记录
+            for(long xid : batch) {
+                tm.persistCommit(xid);
+                pendingCommits.remove(xid);
+            }
+            batch.clear();
+        }
     }
 
     // 手动回滚
@@ -238,16 +717,21 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
      * @param autoAborted 是否自动回滚
      */
     private void internAbort(long xid, boolean autoAborted) {
-        lock.lock();
         Transaction t = activeTransaction.get(xid);
+
+        if(t.readOnly) {
+            activeTransaction.remove(xid);
+            return;
+        }
+        if(!t.autoAborted) {
+            lt.remove(xid);
+            dm.logAbort(xid);   // 回滚不需要等待落盘，丢失时恢复流程会撤销该事务
+            tm.abort(xid);
+        }
+        // 回滚完成后才离开活跃事务，与提交一致
         if(!autoAborted) {
             activeTransaction.remove(xid);
         }
-        lock.unlock();
-
-        if(t.autoAborted) return;
-        lt.remove(xid);
-        tm.abort(xid);
     }
 
     // 释放Entry缓存
@@ -1,6 +1,7 @@
 package com.qihang.qhdb.backend.vm;
 
 import com.qihang.qhdb.backend.tm.TransactionManager;
+import com.qihang.qhdb.backend.tm.TransactionManagerImpl;
 
 /**
  * MVCC的实现代码：实现了读已提交 和 可重复读 两个事务隔离级别
@@ -23,11 +24,20 @@ public class Visibility {
         if(t.level == 0) {
             return false;
         } else {
-            // 已提交删除当前事务版本，并且这个删除的事务id是在此事务之后发生 或者 是一个未提交的活跃事务操作删除的，就存在版本跳跃
-            return tm.isCommitted(xmax) && (xmax > t.xid || t.isInSnapshot(xmax));
+            // 删除当前版本的事务已提交，但提交晚于此事务的快照，就存在版本跳跃
+            return isCommitted(tm, e, false, xmax) && tm.getCSN(xmax) > t.snapshot;
         }
     }
 
+    /**
+     * 乐观事务提交时的验证：记录是否已经被其他事务删除，删除的事务正在进行或已提交
+     * 只允许 XMAX 为空、是自己或已回滚
+     */
+    public static boolean isModified(TransactionManager tm, Transaction t, Entry e) {
+        long xmax = e.getXmax();
+        return xmax != 0 && xmax != t.xid && !isAbort(tm, e, false, xmax);
+    }
+
     /**
      * 当前记录版本对事务的可见性
      */
@@ -66,12 +76,12 @@ public class Visibility {
             return true;
 
         // 由一个已经提交的事务创建
-        if(tm.isCommitted(xmin)) {
+        if(isCommitted(tm, e, true, xmin)) {
             // 如果没有被删除，则对事务t可见
             if(xmax == 0) return true;
             // 如果由一个未提交的事务删除当前版本，也对事务t可见
             if(xmax != xid) {
-                if(!tm.isCommitted(xmax)) {
+                if(!isCommitted(tm, e, false, xmax)) {
                     return true;
                 }
             }
@@ -82,9 +92,9 @@ public class Visibility {
     /**
      * 读提交存在问题: 不可重复读 和 幻读
      *
-     * 可重复读，多了一个记录活跃事务，简而言之活跃事务操作的数据版本都是不可见的
+     * 可重复读，事务开启时取一个提交序号作为快照，只有提交序号不大于快照的提交对它可见
      * 读取事务t操作的版本只要没被删除都是可见的；
-     * 读取其他事务操作过的版本数据，只能读取在本事务开始前就已经提交的事务，并且没有在活跃事务列表里面也没有被删除
+     * 读取其他事务操作过的版本数据，只能读取在快照之前提交的事务创建，并且没有在快照之前被删除的版本
      *
      * @param tm 事务管理器
      * @param t 事务
@@ -98,13 +108,13 @@ public class Visibility {
         // 读取自己操作的版本只要没被删除都是可见的
         if(xmin == xid && xmax == 0) return true;
 
-        // 大范围，只能读取在本事务开始前就已经提交的事务，并且没有在活跃事务列表里面
-        if(tm.isCommitted(xmin) && xmin < xid && !t.isInSnapshot(xmin)) {
+        // 由快照之前提交的事务创建
+        if(isCommittedBefore(tm, t, e, true, xmin)) {
             // 当前版本还不能被删除
             if(xmax == 0) return true;
-            // 删除的事务在本事务之后开始，或者未提交，再或者是活跃事务也是对当前事务可见的
+            // 删除的事务未提交，或者在快照之后才提交，对当前事务仍然可见
             if(xmax != xid) {
-                if(!tm.isCommitted(xmax) || xmax > xid || t.isInSnapshot(xmax)) {
+                if(!isCommittedBefore(tm, t, e, false, xmax)) {
                     return true;
                 }
             }
@@ -112,4 +122,96 @@ public class Visibility {
         return false;
     }
 
+    /**
+     * 记录是否对所有事务都不可见，可以被清理
+     * 水位之前的事务都已结束，且它们的提交对所有快照都可见：
+     *      XMIN 已回滚：记录从未对其他事务可见；
+     *      XMAX 已提交：所有事务都能看到这次删除。
+     * 冻结后这两种记录的 XMIN 和 XMAX 都是 FROZEN_XID
+     *
+     * @param tm 事务管理器
+     * @param e 记录
+     * @param horizon 冻结水位
+     * @return
+     */
+    public static boolean isDead(TransactionManager tm, Entry e, long horizon) {
+        long xmin = e.getXmin();
+        long xmax = e.getXmax();
+        if(xmin == TransactionManagerImpl.FROZEN_XID) {
+            return xmax == TransactionManagerImpl.FROZEN_XID;
+        }
+        // 表结构等由超级事务创建的记录不会被删除
+        if(xmin == TransactionManagerImpl.SUPER_XID) {
+            return false;
+        }
+        if(xmin < horizon && isAbort(tm, e, true, xmin)) {
+            return true;
+        }
+        return xmax != 0 && xmax != TransactionManagerImpl.FROZEN_XID && xmax < horizon && isCommitted(tm, e, false, xmax);
+    }
+
+    /**
+     * 记录是否对所有当前和以后的事务都可见：由水位之前提交的事务创建，没有被删除或删除已回滚
+     */
+    public static boolean isAllVisible(TransactionManager tm, Entry e, long horizon) {
+        long xmin = e.getXmin();
+        long xmax = e.getXmax();
+        if(xmin != TransactionManagerImpl.FROZEN_XID && xmin != TransactionManagerImpl.SUPER_XID
+                && !(xmin < horizon && isCommitted(tm, e, true, xmin))) {
+            return false;
+        }
+        return xmax == 0 || (xmax != TransactionManagerImpl.FROZEN_XID && xmax < horizon && isAbort(tm, e, false, xmax));
+    }
+
+    // xid 已提交，且提交序号不大于事务 t 的快照
+    private static boolean isCommittedBefore(TransactionManager tm, Transaction t, Entry e, boolean isXmin, long xid) {
+        return isCommitted(tm, e, isXmin, xid) && tm.getCSN(xid) <= t.snapshot;
+    }
+
+    /**
+     * 记录的 XMIN 或 XMAX（即 xid）是否已提交
+     * 先查提示位，没有提示时查 TM，查到已提交或已回滚就写回提示位
+     */
+    private static boolean isCommitted(TransactionManager tm, Entry e, boolean isXmin, long xid) {
+        byte hint = e.getHint();
+        if((hint & (isXmin ? Entry.HINT_XMIN_COMMITTED : Entry.HINT_XMAX_COMMITTED)) != 0) {
+            return true;
+        }
+        if((hint & (isXmin ? Entry.HINT_XMIN_ABORTED : Entry.HINT_XMAX_ABORTED)) != 0) {
+            return false;
+        }
+        return resolve(tm, e, isXmin, xid) == Entry.HINT_XMIN_COMMITTED;
+    }
+
+    // 记录的 XMIN 或 XMAX（即 xid）是否已回滚
+    private static boolean isAbort(TransactionManager tm, Entry e, boolean isXmin, long xid) {
+        byte hint = e.getHint();
+        if((hint & (isXmin ? Entry.HINT_XMIN_ABORTED : Entry.HINT_XMAX_ABORTED)) != 0) {
+            return true;
+        }
+        if((hint & (isXmin ? Entry.HINT_XMIN_COMMITTED : Entry.HINT_XMAX_COMMITTED)) != 0) {
+            return false;
+        }
+        return resolve(tm, e, isXmin, xid) == Entry.HINT_XMIN_ABORTED;
+    }
+
+    // 查询 TM 并写回提示位，返回 XMIN 形式的结果，活跃时返回 0
+    // 异步提交的提交记录落盘前不写提示位，页面先于提交记录落盘时不会留下已提交的提示
+    private static byte resolve(TransactionManager tm, Entry e, boolean isXmin, long xid) {
+        byte status;
+        if(tm.isCommitted(xid)) {
+            status = Entry.HINT_XMIN_COMMITTED;
+            if(tm.isCommitPending(xid)) {
+                return status;
+            }
+        } else if(tm.isAbort(xid)) {
+            status = Entry.HINT_XMIN_ABORTED;
+        } else {
+            return 0;
+        }
+        // XMAX 的提示位是 XMIN 的左移两位
+        e.setHint(isXmin, xid, isXmin ? status : (byte)(status << 2));
+        return status;
+    }
+
 }
@@ -26,6 +26,8 @@ public class Error {
     public static final Exception DeadlockException = new RuntimeException("Deadlock!");
     public static final Exception ConcurrentUpdateException = new RuntimeException("Concurrent update issue!");
     public static final Exception NullEntryException = new RuntimeException("Null entry!");
+    public static final Exception LockWaitTimeoutException = new RuntimeException("Lock wait timeout!");
+    public static final Exception ReadOnlyTransactionException = new RuntimeException("Cannot modify in a read-only transaction!");
 
     // tbm
     public static final Exception InvalidFieldException = new RuntimeException("Invalid field type!");
@@ -49,4 +51,6 @@ public class Error {
 
     // launcher
     public static final Exception InvalidMemException = new RuntimeException("Invalid memory!");
+    public static final Exception InvalidLockPolicyException = new RuntimeException("Invalid lock policy!");
+    public static final Exception InvalidLockTimeoutException = new RuntimeException("Invalid lock timeout!");
 }
@@ -0,0 +1,87 @@
+package com.qihang.qhdb.backend.parser;
+
+import com.qihang.qhdb.backend.parser.statement.Begin;
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ParserTest {
+
+    private static Begin begin(String sql) throws Exception {
+        return (Begin) Parser.Parse(sql.getBytes());
+    }
+
+    // 语法错误时抛出 InvalidCommandException，或因剩余未解析的内容抛出 Invalid statement
+    private static void assertInvalid(String sql) {
+        try {
+            Parser.Parse(sql.getBytes());
+        } catch(Exception e) {
+            return;
+        }
+        fail("expected invalid statement: " + sql);
+    }
+
+    @Test
+    public void testBeginDefault() throws Exception {
+        Begin b = begin("begin");
+        assertFalse(b.isReadOnly);
+        assertFalse(b.isOptimistic);
+        assertFalse(b.isRepeatableRead);
+        assertFalse(b.isAsyncCommit);
+    }
+
+    @Test
+    public void testBeginReadOnly() throws Exception {
+        Begin b = begin("begin read only isolation level repeatable read");
+        assertTrue(b.isReadOnly);
+        assertTrue(b.isRepeatableRead);
+        assertFalse(b.isOptimistic);
+
+        b = begin("begin read only isolation level read committed");
+        assertTrue(b.isReadOnly);
+        assertFalse(b.isRepeatableRead);
+
+        b = begin("begin read only commit sync");
+        assertTrue(b.isReadOnly);
+        assertFalse(b.isAsyncCommit);
+    }
+
+    @Test
+    public void testBeginOptimistic() throws Exception {
+        Begin b = begin("begin optimistic isolation level repeatable read commit async");
+        assertTrue(b.isOptimistic);
+        assertTrue(b.isRepeatableRead);
+        assertTrue(b.isAsyncCommit);
+        assertFalse(b.isReadOnly);
+
+        b = begin("begin optimistic commit async");
+        assertTrue(b.isOptimistic);
+        assertFalse(b.isRepeatableRead);
+        assertTrue(b.isAsyncCommit);
+    }
+
+    @Test
+    public void testBeginCommitMode() throws Exception {
+        Begin b = begin("begin isolation level read committed commit async");
+        assertFalse(b.isRepeatableRead);
+        assertTrue(b.isAsyncCommit);
+
+        b = begin("begin isolation level repeatable read commit sync");
+        assertTrue(b.isRepeatableRead);
+        assertFalse(b.isAsyncCommit);
+    }
+
+    @Test
+    public void testBeginInvalid() throws Exception {
+        assertInvalid("begin read");
+        assertInvalid("begin read committed");
+        assertInvalid("begin read only optimistic");
+        assertInvalid("begin optimistic read only");
+        assertInvalid("begin isolation level repeatable read read only");
+        assertInvalid("begin commit");
+        assertInvalid("begin commit async isolation level repeatable read");
+        assertInvalid("begin isolation level serializable");
+    }
+}
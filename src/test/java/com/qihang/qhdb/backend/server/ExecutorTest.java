@@ -0,0 +1,71 @@
+package com.qihang.qhdb.backend.server;
+
+import com.qihang.qhdb.backend.dm.DataManager;
+import com.qihang.qhdb.backend.tbm.TableManager;
+import com.qihang.qhdb.backend.tm.TransactionManager;
+import com.qihang.qhdb.backend.vm.VersionManager;
+import com.qihang.qhdb.backend.vm.VersionManagerImpl;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ExecutorTest {
+
+    private static TableManager open() throws Exception {
+        File dir = Files.createTempDirectory("qhdb").toFile();
+        dir.deleteOnExit();
+        String path = new File(dir, "test").getPath();
+        TransactionManager tm = TransactionManager.create(path);
+        DataManager dm = DataManager.create(path, 1 << 20, tm);
+        VersionManager vm = new VersionManagerImpl(tm, dm);
+        return TableManager.create(path, vm, dm);
+    }
+
+    private static String run(Executor exe, String sql) throws Exception {
+        return new String(exe.execute(sql.getBytes()));
+    }
+
+    // 异步提交返回时修改已经可见，同一会话的下一条语句能读到
+    @Test
+    public void testAsyncCommitReadYourWrites() throws Exception {
+        TableManager tbm = open();
+        Executor exe = new Executor(tbm);
+        run(exe, "create table t id int64, v int64 (index id)");
+        run(exe, "begin commit async");
+        run(exe, "insert into t values 1 10");
+        run(exe, "commit");
+        // 自动提交的查询使用只读事务
+        assertEquals("[1, 10]\n", run(exe, "select * from t where id = 1"));
+
+        // 其他会话也能看到，并且不会被行锁挡住
+        Executor other = new Executor(tbm);
+        run(other, "begin isolation level repeatable read");
+        assertEquals("[1, 10]\n", run(other, "select * from t where id = 1"));
+        run(other, "update t set v = 20 where id = 1");
+        run(other, "commit");
+        assertEquals("[1, 20]\n", run(exe, "select * from t where id = 1"));
+    }
+
+    // 异步提交之后的同步提交落盘时，之前的异步提交也一并落盘
+    @Test
+    public void testAsyncCommitThenSyncCommit() throws Exception {
+        TableManager tbm = open();
+        Executor exe = new Executor(tbm);
+        run(exe, "create table t id int64, v int64 (index id)");
+        for(int i = 0; i < 10; i ++) {
+            run(exe, "begin commit async");
+            run(exe, "insert into t values " + i + " 1");
+            run(exe, "commit");
+        }
+        run(exe, "begin commit sync");
+        run(exe, "delete from t where id < 5");
+        run(exe, "commit");
+        String rows = run(exe, "select * from t");
+        assertEquals(5, rows.split("\n").length);
+        assertTrue(rows.startsWith("[5, 1]"));
+    }
+}